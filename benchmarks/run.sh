@@ -0,0 +1,13 @@
+#!/bin/bash
+
+# Run from the project directory, where the Runners find server.py, e.g.
+#
+#     mvn install && (cd benchmarks && mvn package) && benchmarks/run.sh
+#     benchmarks/run.sh RoundTripBenchmark -p protocol=framed
+#
+# The results are written to benchmarks/results.json, which can be compared between runs
+
+cd "$(dirname "$0")/.."
+
+set -x
+java -jar benchmarks/target/benchmarks.jar -rf json -rff benchmarks/results.json "$@"
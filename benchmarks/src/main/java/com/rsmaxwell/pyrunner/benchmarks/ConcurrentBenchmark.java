@@ -0,0 +1,41 @@
+package com.rsmaxwell.pyrunner.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Several threads sharing one Runner, to show how well the requests of independent callers are pipelined
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public void ping1(RunnerState state) throws Exception {
+        state.runner.ping();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void ping4(RunnerState state) throws Exception {
+        state.runner.ping();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void ping16(RunnerState state) throws Exception {
+        state.runner.ping();
+    }
+}
@@ -0,0 +1,36 @@
+package com.rsmaxwell.pyrunner.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rsmaxwell.pyrunner.Result;
+import com.rsmaxwell.pyrunner.RunnerAsync;
+
+/**
+ * Decoding a getResult response line, without a server
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private String line = "{\"status\": \"ok\", \"result\": {\"count\": 2000, \"total\": 1001.6172530226456}, \"token\": \"42\"}";
+
+    @Benchmark
+    public Result getResult() throws Exception {
+        return RunnerAsync.handleResponseGetResult(new JSONObject(line));
+    }
+}
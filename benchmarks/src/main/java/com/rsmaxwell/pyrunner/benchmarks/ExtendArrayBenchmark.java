@@ -0,0 +1,50 @@
+package com.rsmaxwell.pyrunner.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appending a primitive array, which is sent in pipelined binary chunks. The array on the server is emptied before each iteration so that
+ * it does not grow without limit
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtendArrayBenchmark {
+
+    @Param({ "1", "1000", "100000", "10000000" })
+    public int size;
+
+    private double[] values;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        values = ThreadLocalRandom.current().doubles(size, 0.0, 1.0).toArray();
+    }
+
+    @Setup(Level.Iteration)
+    public void empty(RunnerState state) throws Exception {
+        state.runner.createArray("array");
+    }
+
+    @Benchmark
+    public void extendArray(RunnerState state) throws Exception {
+        state.runner.extendArray("array", values);
+    }
+}
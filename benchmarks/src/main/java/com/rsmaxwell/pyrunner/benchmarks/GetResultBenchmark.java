@@ -0,0 +1,40 @@
+package com.rsmaxwell.pyrunner.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rsmaxwell.pyrunner.Result;
+
+/**
+ * Fetching the result as a whole round trip. DecodeBenchmark measures the decoding of the response alone
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetResultBenchmark {
+
+    @Setup(Level.Trial)
+    public void result(RunnerState state) throws Exception {
+        state.runner.extendArray("array", new double[] { 1.0, 2.0, 3.0 });
+        state.runner.runPythonFunction("foobar");
+    }
+
+    @Benchmark
+    public Result getResult(RunnerState state) throws Exception {
+        return state.runner.getResult();
+    }
+}
@@ -0,0 +1,43 @@
+package com.rsmaxwell.pyrunner.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rsmaxwell.pyrunner.LogLevel;
+import com.rsmaxwell.pyrunner.Protocol;
+import com.rsmaxwell.pyrunner.Runner;
+import com.rsmaxwell.pyrunner.RunnerConfig;
+
+/**
+ * One quiet Runner per trial, shared by all the benchmark threads
+ */
+@State(Scope.Benchmark)
+public class RunnerState {
+
+    @Param({ "json", "framed" })
+    public Protocol protocol;
+
+    public Runner runner;
+
+    static RunnerConfig config(Protocol protocol) {
+        RunnerConfig config = new RunnerConfig();
+        config.setLogLevel(LogLevel.quiet);
+        config.setProtocol(protocol);
+        return config;
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        runner = new Runner(config(protocol));
+        runner.createArray("array");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        runner.close();
+    }
+}
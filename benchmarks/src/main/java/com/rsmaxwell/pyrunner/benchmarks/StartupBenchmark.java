@@ -0,0 +1,39 @@
+package com.rsmaxwell.pyrunner.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rsmaxwell.pyrunner.Protocol;
+import com.rsmaxwell.pyrunner.Runner;
+
+/**
+ * The time from asking for a Runner to its first response, and then closing it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({ "json", "framed" })
+    public Protocol protocol;
+
+    @Benchmark
+    public void startAndClose() throws Exception {
+        try (Runner runner = new Runner(RunnerState.config(protocol))) {
+            runner.ping();
+        }
+    }
+}
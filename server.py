@@ -1,27 +1,127 @@
 #!/usr/bin/python3
 
 from __future__ import print_function
+import os
+import re
 import sys
 import json
+import inspect
+import importlib
 import time
+import mmap
+import struct
+import signal
+import tempfile
+import shutil
+import base64
 import binascii
+import threading
+from array import array
+from functools import reduce
 from datetime import datetime
 
+try:
+    import queue
+except ImportError:
+    import Queue as queue
+
 data = {}
+shared = {}
+
+# Incremental aggregates, by field
+aggregates = {}
+
+# Fields are python lists, or arrays which store their values unboxed, 8 bytes each. 'q' is only there from python 3.3
+try:
+    INT64 = array('q').typecode
+except ValueError:
+    INT64 = 'l'
+ARRAY_TYPES = {'float64': 'd', 'int64': INT64}
+
+# Datasets which outlive the server are kept in files in the data directory, one per field
+data_directory = None
+DATASET_MAGIC = b'PRDS'
+DATASET_HEADER = struct.Struct('<4sc3xQ')
+
+# numpy is only imported when first needed, and only used if present, to reduce typed arrays
+numpy = None
+
+# Data versions: every mutation bumps the generation, code which may change any field also bumps the epoch,
+# and an extend bumps the version of its field
+generation = 0
+epoch = 0
+versions = {}
+
+# Registered functions, called by handle: the handle is the index into the list
+functions = []
+function_handles = {}
+
+# Log levels of the lines written to stdout, which the java client forwards to its loggers
+QUIET = 0
+ERROR = 1
+INFO = 2
+TRACE = 3
+log_levels = {'quiet': QUIET, 'error': ERROR, 'info': INFO, 'trace': TRACE}
+log_level = TRACE
+
+# Protocol 1 is a json line per message. Protocol 2 frames every message with a fixed binary header:
+#     magic 'PR', version, opcode, status, priority, 2 bytes padding, 64 bit request id, 32 bit body length (little-endian)
+# where the priority of a request is the index of its entry in PRIORITIES, and is zero in a response
+# and a body of a 32 bit json length, the json (the arguments, or the response fields), and then any binary data
+protocol = 1
+MAGIC = b'PR'
+VERSION = 2
+HEADER = struct.Struct('<2sBBBB2xQI')
+JSON_LENGTH = struct.Struct('<I')
+HELLO = 0
+# In zygote mode the process only preloads the modules, and then forks a server for each client
+zygote = False
+modules_loaded = []
+
+# The threads of the background lane, and the locks which the lanes share
+worker_count = 2
+# The interpreter's switch interval in microseconds, or 0 to leave it alone
+switch_interval = 0
+output_lock = threading.Lock()
+function_lock = threading.RLock()
+aggregate_lock = threading.RLock()
+
+opcodes = ['hello', 'quit', 'ping', 'run', 'get', 'getArray', 'extend', 'extendShared', 'batch', 'loglevel',
+           'registerFunction', 'lookupFunction', 'call', 'query', 'aggregate', 'addReducer', 'getAggregates',
+           'snapshot', 'restore']
+
+
+class CommandError(Exception):
+    pass
 
 
 def okResponse():
         response = {}
         response['status'] = "ok"
-        response['token'] = token
-        eprint(json.dumps(response))
+        return response
 
 def errorResponse(message):
         response = {}
         response['status'] = "error"
-        response['token'] = token
         response['message'] = message
-        eprint(json.dumps(response))
+        return response
+
+
+def getArguments(request, count):
+    arguments = []
+    if 'arguments' in request:
+        arguments = request['arguments']
+
+    if count is not None and len(arguments) != count:
+        raise CommandError("Expected " + str(count) + " argument" + ("" if count == 1 else "s") + ", found " + str(len(arguments)))
+
+    return arguments
+
+
+def getField(field):
+    if field not in data:
+        raise CommandError("field '" + field + "' not found")
+    return data[field]
 
 
 def eprint(*args, **kwargs):
@@ -29,161 +129,1163 @@ def eprint(*args, **kwargs):
     sys.stderr.flush()
 
 
+def log(level, *args):
+    if level <= log_level:
+        with output_lock:
+            print(*args)
+            sys.stdout.flush()
+
+
 def foobar():
-    print("FooBar")
-    sys.stdout.flush()
+    log(INFO, "FooBar")
 
-    total = 0.0
-    for value in data['array']:
-        total = total + value
+    aggregate = declareAggregate('array', ['count', 'sum'])
 
     data['result'] = {}
-    data['result']['count'] = len(data['array'])
-    data['result']['total'] = total
+    data['result']['count'] = aggregate.count
+    data['result']['total'] = aggregate.sum
 
 
 
-def quit( *args ):
-    print("Quit")
-    sys.stdout.flush()
-    okResponse()
-    sys.exit()
+# A new empty field: a list, or an array of one of ARRAY_TYPES
+def newArray(kind='list'):
+    if kind == 'list':
+        return []
+    if kind not in ARRAY_TYPES:
+        raise CommandError("Unexpected array type: " + str(kind))
+    return array(ARRAY_TYPES[kind])
 
 
+# Append values decoded from a payload to a field, in bulk if the field is an array of the same type
+def appendValues(target, values):
+    if hasattr(target, 'typecode') and target.typecode != values.typecode:
+        if target.typecode != 'd':
+            raise CommandError("cannot append values of type '" + values.typecode + "' to an array of type '" + target.typecode + "'")
+        values = array('d', values)
+    target.extend(values)
 
 
+# A view of an array, or of a slice of a mapped one, for numpy to reduce without copying, or None if the values are of
+# neither kind or numpy is not installed
+def vectorized(values):
+    global numpy
+    if numpy is None:
+        try:
+            import numpy as module
+            numpy = module
+        except ImportError:
+            numpy = False
 
-def run( *args ):
-    print("Run")
-    sys.stdout.flush()
+    if isinstance(values, array):
+        typecode = values.typecode
+    elif isinstance(values, memoryview):
+        typecode = values.format
+    else:
+        return None
 
-    arguments = []
-    if 'arguments' in parsed_json:
-        arguments = parsed_json['arguments']
+    if not numpy or typecode not in ('d', INT64) or len(values) == 0:
+        return None
+    return numpy.frombuffer(values, dtype=numpy.float64 if typecode == 'd' else numpy.int64)
+
+
+# *****************************************************************************
+# * Persistent datasets
+# *****************************************************************************
+
+# A field kept in a file of the data directory and mapped into memory: a header of the magic, the type code and the number
+# of values, and then the values. Pages are read on demand, so a dataset may be larger than memory, and the file is grown
+# by doubling as values are appended. The count is written after the values, so the file is consistent if the server dies
+class MappedArray(object):
+
+    def __init__(self, path, typecode=None):
+        if typecode is not None:
+            with open(path, 'wb') as f:
+                f.write(DATASET_HEADER.pack(DATASET_MAGIC, typecode.encode('ascii'), 0))
+
+        self.path = path
+        self.file = open(path, 'r+b')
+        magic, typecode, self.count = DATASET_HEADER.unpack(self.file.read(DATASET_HEADER.size))
+        if magic != DATASET_MAGIC:
+            self.file.close()
+            raise CommandError("not a dataset: " + path)
+        self.typecode = typecode.decode('ascii')
+        self.itemsize = array(self.typecode).itemsize
+        self.map()
+
+    def map(self):
+        self.mapped = mmap.mmap(self.file.fileno(), 0)
+        self.view = memoryview(self.mapped)[DATASET_HEADER.size:].cast(self.typecode)
+
+    def unmap(self):
+        self.view.release()
+        try:
+            self.mapped.close()
+        except BufferError:
+            # a slice of the old mapping is still in use, and the mapping is closed when it goes
+            pass
+
+    def __len__(self):
+        return self.count
+
+    def __getitem__(self, index):
+        if isinstance(index, slice):
+            return self.view[:self.count][index]
+        if index < 0:
+            index += self.count
+        if index < 0 or index >= self.count:
+            raise IndexError("index out of range")
+        return self.view[index]
+
+    def __iter__(self):
+        return iter(self.view[:self.count])
+
+    def extend(self, values):
+        if getattr(values, 'typecode', None) != self.typecode and getattr(values, 'format', None) != self.typecode:
+            values = array(self.typecode, values)
+
+        n = len(values)
+        if self.count + n > len(self.view):
+            capacity = max(self.count + n, 2 * len(self.view), 1024)
+            self.unmap()
+            self.file.truncate(DATASET_HEADER.size + capacity * self.itemsize)
+            self.map()
 
-    if len(arguments) != 1:
-        errorResponse("Expected 1 argument, found " + str(len(arguments)))
-        return
+        self.view[self.count:self.count + n] = values
+        self.count += n
+        DATASET_HEADER.pack_into(self.mapped, 0, DATASET_MAGIC, self.typecode.encode('ascii'), self.count)
 
-    python = arguments[0]
+    def tolist(self):
+        return self.view[:self.count].tolist()
+
+    def flush(self):
+        self.mapped.flush()
+
+    def close(self):
+        self.flush()
+        self.unmap()
+        self.file.close()
+
+
+def datasetPath(field):
+    if sys.version_info[0] < 3:
+        raise CommandError("persistent datasets need python 3")
+    if data_directory is None:
+        raise CommandError("no data directory: start the server with --data-dir")
+    if not re.match(r'^[A-Za-z0-9_][A-Za-z0-9_.-]*$', field):
+        raise CommandError("field '" + field + "' cannot name a dataset")
+    return os.path.join(data_directory, field + '.dataset')
+
+
+# Close the mapping of a field which is about to be replaced, before its file is
+def unmapField(field):
+    old = data.get(field)
+    if isinstance(old, MappedArray):
+        old.close()
+
+
+# A new empty field of one of ARRAY_TYPES, kept in the data directory, replacing any dataset of the same name
+def newMappedArray(field, kind):
+    if kind not in ARRAY_TYPES:
+        raise CommandError("Unexpected array type: " + str(kind))
+    path = datasetPath(field)
+    unmapField(field)
+    return MappedArray(path, ARRAY_TYPES[kind])
+
+
+# Write a field to its file in the data directory. A mapped field is already there, and only flushed to disk; any other is
+# written to a new file which then replaces the old one, so that a failure leaves the last snapshot intact
+def snapshot(request, payload):
+    log(INFO, "Snapshot")
+
+    field = getArguments(request, 1)[0]
+    values = getField(field)
+    path = datasetPath(field)
+
+    if isinstance(values, MappedArray):
+        values.flush()
+    else:
+        if not isinstance(values, array):
+            values = array('d', values)
+        temporary = path + '.tmp'
+        with open(temporary, 'wb') as f:
+            f.write(DATASET_HEADER.pack(DATASET_MAGIC, values.typecode.encode('ascii'), len(values)))
+            values.tofile(f)
+        os.replace(temporary, path)
+
+    response = okResponse()
+    response['count'] = len(values)
+    return response
+
+
+# Make a field the dataset in its file, by mapping it rather than reading it. Values appended to the field from then on are
+# appended to the file
+def restore(request, payload):
+    log(INFO, "Restore")
+
+    field = getArguments(request, 1)[0]
+    path = datasetPath(field)
+    if not os.path.exists(path):
+        raise CommandError("no dataset for field '" + field + "'")
+
+    unmapField(field)
+    data[field] = MappedArray(path)
+
+    response = okResponse()
+    response['count'] = len(data[field])
+    return response
+
+
+def quit(request, payload):
+    log(INFO, "Quit")
+    return okResponse()
+
+
+def ping(request, payload):
+    return okResponse()
+
+
+def loglevel(request, payload):
+    global log_level
+
+    name = getArguments(request, 1)[0]
+    if name not in log_levels:
+        raise CommandError("Unexpected log level: " + str(name))
+
+    log_level = log_levels[name]
+    return okResponse()
+
+
+
+
+
+def run(request, payload):
+    log(INFO, "Run")
+
+    python = getArguments(request, 1)[0]
 
     try:
         exec( python )
-        okResponse()
+        return okResponse()
     except Exception as e:
-        errorResponse(str(e))
-        print( sys.exc_info()[0] )
-        sys.stdout.flush()
-
+        log(ERROR, sys.exc_info()[0])
+        return errorResponse(str(e))
 
 
 
 
-def get( *args ):
-    print("Get")
-    sys.stdout.flush()
 
-    arguments = json.loads('[]')
-    if 'arguments' in parsed_json:
-        arguments = parsed_json['arguments']
+# The payload is little-endian float64 values, or those of the type given as a second argument
+def extend(request, payload):
+    log(INFO, "Extend")
 
-    if len(arguments) != 1:
-        errorResponse("Expected 1 argument, found " + str(len(arguments)))
-        return
+    arguments = getArguments(request, None)
+    if len(arguments) not in (1, 2):
+        raise CommandError("Expected 1 or 2 arguments, found " + str(len(arguments)))
 
     field = arguments[0]
+    kind = arguments[1] if len(arguments) > 1 else 'float64'
+    if kind not in ARRAY_TYPES:
+        raise CommandError("Unexpected array type: " + str(kind))
+    target = getField(field)
 
-    response = {}
-    if field in data:
-        response['status'] = 'ok'
-        response['token'] = token
-        response['result'] = data[ field ]
+    values = array(ARRAY_TYPES[kind])
+    if sys.version_info[0] >= 3:
+        values.frombytes(payload)
     else:
-        response['status'] = 'error'
-        response['token'] = token
-        response['message'] = "field '" + field + "' not found"
+        values.fromstring(payload)
+
+    if sys.byteorder == 'big':
+        values.byteswap()
+
+    appendValues(target, values)
+    return okResponse()
+
+
+
+
+
+# Map the shared file which the java client writes into, remapping it when the client has grown it
+def shared_view(path, offset, length):
+    mapped = shared.get(path)
+    if mapped is None or len(mapped) < offset + length:
+        if mapped is not None:
+            mapped.close()
+        with open(path, 'r+b') as f:
+            mapped = mmap.mmap(f.fileno(), 0)
+        shared[path] = mapped
+    return memoryview(mapped)[offset:offset + length]
+
+
+# The shared file holds little-endian float64 values, which only a list or an array of float64 can take
+def extendShared(request, payload):
+    log(INFO, "ExtendShared")
+
+    field, path, offset, length = getArguments(request, 4)
+    target = getField(field)
+    if hasattr(target, 'typecode') and target.typecode != 'd':
+        raise CommandError("cannot append values of type 'd' to an array of type '" + target.typecode + "'")
+
+    view = shared_view(path, offset, length)
+    try:
+        if isinstance(target, array) and target.typecode == 'd' and sys.version_info[0] >= 3 and sys.byteorder == 'little':
+            target.frombytes(view)
+        elif sys.version_info[0] >= 3 and sys.byteorder == 'little':
+            values = view.cast('d')
+            try:
+                target.extend(values)
+            finally:
+                values.release()
+        else:
+            values = array('d')
+            if sys.version_info[0] >= 3:
+                values.frombytes(view)
+            else:
+                values.fromstring(view.tobytes())
+            if sys.byteorder == 'big':
+                values.byteswap()
+            appendValues(target, values)
+    finally:
+        view.release()
+
+    return okResponse()
+
+
+
+
+
+def get(request, payload):
+    log(INFO, "Get")
+
+    field = getArguments(request, 1)[0]
+
+    value = getField(field)
+    if isinstance(value, (array, MappedArray)):
+        value = value.tolist()
+
+    response = okResponse()
+    response['result'] = value
+    return response
+
+
+
+
+
+# The statistics of a field which only grows at the end, brought up to date by folding in just the values appended since the
+# last time. Replacing the field, or shrinking it, starts again from the beginning. Each reducer is a registered function
+# f(a, b) which is associative, with initial as its identity, so that reductions of parts of a field can be combined
+STATISTICS = ('count', 'sum', 'min', 'max', 'mean', 'variance')
+
+
+class Aggregate(object):
+
+    def __init__(self, field, statistics):
+        self.field = field
+        self.statistics = set(statistics)
+        self.reducers = {}
+        self.reset(None)
+
+    def reset(self, values):
+        self.values = values
+        self.count = 0
+        self.sum = 0.0
+        self.min = None
+        self.max = None
+        self.mean = 0.0
+        self.m2 = 0.0
+        for reducer in self.reducers.values():
+            reducer[2] = reducer[1]
+
+    def refresh(self):
+        values = getField(self.field)
+        if values is not self.values or len(values) < self.count:
+            self.reset(values)
+        if len(values) > self.count:
+            self.add(values[self.count:])
+        return self
+
+    def add(self, delta):
+        view = vectorized(delta)
+        if view is not None:
+            self.addVectorized(view)
+        else:
+            self.addValues(delta)
+        for reducer in self.reducers.values():
+            reducer[2] = reduce(functions[reducer[0]], delta, reducer[2])
+        self.count += len(delta)
+
+    def addValues(self, delta):
+        if 'sum' in self.statistics or 'mean' in self.statistics:
+            self.sum = sum(delta, self.sum)
+        if 'min' in self.statistics:
+            self.merge(min(delta), None)
+        if 'max' in self.statistics:
+            self.merge(None, max(delta))
+        if 'variance' in self.statistics:
+            mean = sum(delta, 0.0) / len(delta)
+            self.combine(len(delta), mean, sum([(value - mean) * (value - mean) for value in delta], 0.0))
+
+    # The same, with numpy, whose sums are pairwise, so they may differ from the sequential ones in the last bits
+    def addVectorized(self, view):
+        if 'sum' in self.statistics or 'mean' in self.statistics:
+            self.sum = self.sum + view.sum(dtype=numpy.float64).item()
+        if 'min' in self.statistics:
+            self.merge(view.min().item(), None)
+        if 'max' in self.statistics:
+            self.merge(None, view.max().item())
+        if 'variance' in self.statistics:
+            mean = view.mean(dtype=numpy.float64).item()
+            deviations = view - mean
+            self.combine(len(view), mean, numpy.dot(deviations, deviations).item())
+
+    def merge(self, low, high):
+        if low is not None:
+            self.min = low if self.min is None else min(self.min, low)
+        if high is not None:
+            self.max = high if self.max is None else max(self.max, high)
+
+    # Combine the mean and the sum of squared deviations of the delta with those so far (Chan et al.)
+    def combine(self, n, mean, m2):
+        total = self.count + n
+        difference = mean - self.mean
+        self.m2 = self.m2 + m2 + difference * difference * self.count * n / total
+        self.mean = self.mean + difference * n / total
+
+    def response(self):
+        response = okResponse()
+        response['count'] = self.count
+        if 'sum' in self.statistics:
+            response['sum'] = self.sum
+        if 'min' in self.statistics:
+            response['min'] = self.min
+        if 'max' in self.statistics:
+            response['max'] = self.max
+        if 'mean' in self.statistics:
+            response['mean'] = self.sum / self.count if self.count else None
+        if 'variance' in self.statistics:
+            response['variance'] = self.m2 / self.count if self.count else None
+        response['reducers'] = dict((name, reducer[2]) for name, reducer in self.reducers.items())
+        return response
+
+
+# Declare statistics on a field, adding to any already declared. New statistics are computed over the whole field once.
+# The variance is always reported with the mean, so that the variances of parts of a field can be combined
+def declareAggregate(field, statistics):
+    for name in statistics:
+        if name not in STATISTICS:
+            raise CommandError("Unexpected statistic: " + str(name))
+    if 'variance' in statistics:
+        statistics = list(statistics) + ['mean']
+
+    with aggregate_lock:
+        aggregate = aggregates.get(field)
+        if aggregate is None:
+            aggregate = Aggregate(field, statistics)
+            aggregates[field] = aggregate
+        elif not aggregate.statistics.issuperset(statistics):
+            aggregate.statistics.update(statistics)
+            aggregate.reset(None)
+        return aggregate.refresh()
+
+
+def aggregate(request, payload):
+    log(INFO, "Aggregate")
+
+    field, statistics = getArguments(request, 2)
+    declareAggregate(field, statistics)
+    return okResponse()
+
+
+def addReducer(request, payload):
+    log(INFO, "AddReducer")
+
+    field, name, handle, initial = getArguments(request, 4)
+    if not isinstance(handle, int) or handle < 0 or handle >= len(functions):
+        raise CommandError("Unknown function handle: " + str(handle))
+
+    with aggregate_lock:
+        aggregate = declareAggregate(field, [])
+        aggregate.reducers[name] = [handle, initial, initial]
+        aggregate.reset(None)
+        aggregate.refresh()
+    return okResponse()
+
+
+def getAggregates(request, payload):
+    log(INFO, "GetAggregates")
+
+    field = getArguments(request, 1)[0]
+    with aggregate_lock:
+        if field not in aggregates:
+            raise CommandError("no aggregates declared on field '" + field + "'")
+
+        return aggregates[field].refresh().response()
+
+
+
+
+
+def register(name, function):
+    with function_lock:
+        if name in function_handles:
+            handle = function_handles[name]
+            functions[handle] = function
+        else:
+            handle = len(functions)
+            functions.append(function)
+            function_handles[name] = handle
+        return handle
+
+
+def handleResponse(name, handle):
+    response = okResponse()
+    response['name'] = name
+    response['handle'] = handle
+    return response
+
+
+# Compile the source once, which must define a function of the given name in the same namespace as 'run'
+def registerFunction(request, payload):
+    log(INFO, "RegisterFunction")
+
+    name, source = getArguments(request, 2)
+
+    code = compile(source, '<' + name + '>', 'exec')
+    exec(code, globals())
+
+    function = globals().get(name)
+    if not callable(function):
+        raise CommandError("source does not define a function '" + name + "'")
+
+    return handleResponse(name, register(name, function))
+
+
+# Find the handle of a registered function, or register a function which is already defined, such as one loaded with --module
+def lookupFunction(request, payload):
+    name = getArguments(request, 1)[0]
+
+    if name in function_handles:
+        return handleResponse(name, function_handles[name])
+
+    function = globals().get(name)
+    if not callable(function):
+        raise CommandError("function '" + name + "' not found")
+
+    return handleResponse(name, register(name, function))
 
-    eprint(json.dumps(response))
+
+# Call a registered function by handle, with the remaining arguments passed through as its parameters
+def call(request, payload):
+    arguments = getArguments(request, None)
+    if len(arguments) < 1:
+        raise CommandError("Expected a function handle")
+
+    handle = arguments[0]
+    if not isinstance(handle, int) or handle < 0 or handle >= len(functions):
+        raise CommandError("Unknown function handle: " + str(handle))
+
+    response = okResponse()
+    response['result'] = functions[handle](*arguments[1:])
+    return response
+
+
+# The same as call, for a function which only reads the data, and so does not count as a mutation
+def query(request, payload):
+    return call(request, payload)
+
+
+# Load a module by file name or module name, give it access to 'data', and register its public functions
+def loadModule(name):
+    modules_loaded.append(name)
+
+    if name.endswith('.py'):
+        import importlib.util
+        module_name = os.path.splitext(os.path.basename(name))[0]
+        spec = importlib.util.spec_from_file_location(module_name, name)
+        module = importlib.util.module_from_spec(spec)
+        module.data = data
+        spec.loader.exec_module(module)
+    else:
+        module = importlib.import_module(name)
+        module.data = data
+
+    for attribute in dir(module):
+        function = getattr(module, attribute)
+        if attribute.startswith('_') or not inspect.isfunction(function) or function.__module__ != module.__name__:
+            continue
+        globals()[attribute] = function
+        register(attribute, function)
+
+
+
+
+
+# Return a slice of an array as little-endian doubles, rather than as a json list: raw in protocol 2,
+# and base64 encoded in a 'data' field in protocol 1. A negative length means to the end of the array
+def getArray(request, payload):
+    log(INFO, "GetArray")
+
+    field, offset, length = getArguments(request, 3)
+    values = getField(field)
+
+    if offset < 0 or offset > len(values):
+        raise CommandError("offset " + str(offset) + " out of range for field '" + field + "' of length " + str(len(values)))
+
+    end = len(values) if length < 0 else min(len(values), offset + length)
+    chunk = array('d', values[offset:end])
+
+    if sys.byteorder == 'big':
+        chunk.byteswap()
+
+    response = okResponse()
+    response['count'] = len(chunk)
+    response['binary'] = chunk.tobytes() if sys.version_info[0] >= 3 else chunk.tostring()
+    return response
+
+
+
+
+
+# Execute a list of operations in order, with their binary payloads concatenated in the same order.
+# With stopOnError (the default) the first failure ends the batch and becomes its response
+def batch(request, payload):
+    log(INFO, "Batch")
+
+    operations = getArguments(request, None)
+    stop_on_error = request.get('stopOnError', True)
+
+    if sys.version_info[0] >= 3:
+        payload = memoryview(payload)
+
+    results = []
+    offset = 0
+    for operation in operations:
+        length = operation.get('length', 0)
+        part = payload[offset:offset + length]
+        offset += length
+
+        if operation.get('command') in ('batch', 'quit'):
+            response = errorResponse("Command not allowed in a batch: " + str(operation.get('command')))
+        else:
+            response = encodeBinary(execute(operation, part))
+        results.append(response)
+
+        if response['status'] != 'ok' and stop_on_error:
+            failure = errorResponse("operation " + str(len(results) - 1) + ": " + str(response.get('message')))
+            failure['results'] = results
+            return failure
+
+    response = okResponse()
+    response['results'] = results
+    return response
+
+
+
+
+
+commands = {'quit': quit, 'ping': ping, 'run': run, 'get': get, 'getArray': getArray, 'extend': extend, 'extendShared': extendShared, 'batch': batch, 'loglevel': loglevel,
+            'registerFunction': registerFunction, 'lookupFunction': lookupFunction, 'call': call, 'query': query,
+            'aggregate': aggregate, 'addReducer': addReducer, 'getAggregates': getAggregates, 'snapshot': snapshot, 'restore': restore}
+
+# The commands which change the data: either any field, or the field which is their first argument.
+# A batch changes nothing itself, but reports the versions after its operations
+ANY_FIELD = 'any'
+FIRST_FIELD = 'first'
+mutations = {'run': ANY_FIELD, 'call': ANY_FIELD, 'registerFunction': ANY_FIELD, 'extend': FIRST_FIELD, 'extendShared': FIRST_FIELD,
+             'restore': FIRST_FIELD, 'aggregate': FIRST_FIELD, 'addReducer': FIRST_FIELD, 'batch': None}
+
+
+# Count a mutation, whether or not it succeeded, and report the versions in its response
+def versioned(request, response):
+    global generation, epoch
+
+    kind = mutations[request['command']]
+    changed = {}
+    if kind == ANY_FIELD:
+        generation += 1
+        epoch += 1
+    elif kind == FIRST_FIELD:
+        arguments = request.get('arguments')
+        if arguments:
+            field = arguments[0]
+            generation += 1
+            versions[field] = versions.get(field, 0) + 1
+            changed[field] = versions[field]
+    else:
+        changed = versions
+
+    response['generation'] = generation
+    response['epoch'] = epoch
+    if changed:
+        response['versions'] = dict(changed)
+    return response
+
+
+def execute(request, payload):
+
+    if 'command' not in request:
+        return errorResponse("No 'command' field in input")
+
+    command_string = request['command']
+    command = commands.get(command_string)
+
+    if command is None:
+        return errorResponse("Unexpected command: " + command_string)
+
+    try:
+        response = command(request, payload)
+    except CommandError as e:
+        response = errorResponse(str(e))
+    except Exception as e:
+        if log_level >= ERROR:
+            log(ERROR, "Caught exception: " + str(e))
+            log(ERROR, sys.exc_info()[0])
+            log(ERROR, json.dumps(request, sort_keys=True, indent=4, separators=(',', ': ')))
+        response = errorResponse(str(e))
+
+    if command_string in mutations:
+        response = versioned(request, response)
+    return response
+
+
+# Move any binary data of a response into a base64 'data' field, for responses which are sent as json
+def encodeBinary(response):
+    binary = response.pop('binary', None)
+    if binary is not None:
+        encoded = base64.b64encode(binary)
+        response['data'] = encoded.decode('ascii') if sys.version_info[0] >= 3 else encoded
+    return response
+
+
+def respond(token, response):
+    response['token'] = token
+    encoded = json.dumps(encodeBinary(response))
+    with output_lock:
+        eprint(encoded)
+
+
+# *****************************************************************************
+# * Lanes
+# *****************************************************************************
+#
+# The reader answers ping and loglevel itself, as soon as they arrive, and so any read which the client marks as 'fast'.
+# Every other command goes to the ordered lane, a thread which runs them one at a time in the order they were sent, except
+# for reads marked as 'background', which go to a pool of worker threads. So a long run holds up neither a health check nor
+# a read which does not need to wait for it, and the responses come back in the order they are ready, matched by token.
+# A read which does not go through the ordered lane sees the data as it is at the time, without the mutations still queued
+
+PRIORITIES = ['normal', 'fast', 'background']
+ALWAYS_FAST = ('ping', 'loglevel')
+# lookupFunction is not one of them, since it may give out a handle, which must be in the same order as registerFunction's
+READS = ('get', 'getArray', 'getAggregates', 'query')
+
+# Commands whose cost is bounded by what the reader has already read, which the reader runs itself when the ordered lane
+# is idle, rather than paying for a hand-off to it. The order is the same, since only the reader adds to the lane. The
+# extends change the data, so they are only run by the reader when no background read is running against it either
+CHEAP = ('get', 'getArray', 'getAggregates', 'lookupFunction', 'extend', 'extendShared')
+
+
+class Lane(object):
+
+    def __init__(self, name, threads):
+        self.requests = queue.Queue()
+        self.held = False
+        self.lock = threading.Lock()
+        for i in range(threads):
+            thread = threading.Thread(target=self.run, name=name)
+            thread.daemon = True
+            thread.start()
+
+    def submit(self, task, *args):
+        self.requests.put((task, args))
+
+    # Submit a task unless the lane is held, in which case it is left to the caller
+    def offer(self, task, *args):
+        with self.lock:
+            if self.held:
+                return False
+            self.requests.put((task, args))
+            return True
+
+    # Turn away offered tasks, so that once the lane has drained nothing more runs in it until it is released
+    def hold(self):
+        with self.lock:
+            self.held = True
+
+    def release(self):
+        with self.lock:
+            self.held = False
+
+    def run(self):
+        while True:
+            task, args = self.requests.get()
+            try:
+                task(*args)
+            except Exception as e:
+                log(ERROR, "Lane: Caught exception: " + str(e))
+            finally:
+                self.requests.task_done()
+
+    # Wait for everything submitted so far to be answered
+    def drain(self):
+        self.requests.join()
+
+    def idle(self):
+        return self.requests.unfinished_tasks == 0
+
+
+ordered_lane = None
+background_lane = None
+
+
+def startLanes():
+    global ordered_lane, background_lane
+
+    ordered_lane = Lane('ordered', 1)
+    if worker_count > 0:
+        background_lane = Lane('background', worker_count)
+
+    # A thread which holds the interpreter lock is asked to let go of it after this long, which bounds how long the
+    # reader waits to answer a fast command while a run is busy
+    if switch_interval > 0 and hasattr(sys, 'setswitchinterval'):
+        sys.setswitchinterval(switch_interval / 1e6)
+
+
+def drainLanes():
+    if ordered_lane is not None:
+        ordered_lane.drain()
+    if background_lane is not None:
+        background_lane.drain()
+
+
+# A mutation waits for the background reads, one of which may hold a view of an array it would resize, and new background
+# reads are held back meanwhile so that they cannot keep it waiting. A mutation of a single field is short, so they are held
+# back until it is done too. A run, a call or a batch may take a long time, and reads sent while it runs still run alongside
+# it, as the background lane is for
+def afterBackgroundReads(command, task, *args):
+    background_lane.hold()
+    try:
+        background_lane.drain()
+        if mutations[command] != FIRST_FIELD:
+            background_lane.release()
+        task(*args)
+    finally:
+        background_lane.release()
+
+
+def isInline(command):
+    if command not in CHEAP or not ordered_lane.idle():
+        return False
+    return command not in mutations or background_lane is None or background_lane.idle()
+
+
+# Answer a command now, or hand it to the lane for its priority
+def dispatch(command, priority, task, *args):
+    if command in ALWAYS_FAST or (priority == 'fast' and command in READS) or isInline(command):
+        task(*args)
+    elif priority == 'background' and command in READS and background_lane is not None:
+        # A read turned away while a mutation is waiting runs after the mutation, in order
+        if not background_lane.offer(task, *args):
+            ordered_lane.submit(task, *args)
+    elif command in mutations and background_lane is not None:
+        ordered_lane.submit(afterBackgroundReads, command, task, *args)
+    else:
+        ordered_lane.submit(task, *args)
 
 
 
 
 if sys.version_info[0] >= 3:
-    get_input = input
+    stdin = sys.stdin.buffer
+    stderr = sys.stderr.buffer
 else:
-    get_input = raw_input
+    stdin = sys.stdin
+    stderr = sys.stderr
+
+
+def parse_options(argv):
+    global log_level
+    global protocol
+    global zygote
+    global data_directory
+    global worker_count
+    global switch_interval
+
+    i = 1
+    while i < len(argv):
+        if argv[i] == '--log-level' and i + 1 < len(argv):
+            log_level = log_levels[argv[i + 1]]
+            i += 2
+        elif argv[i] == '--module' and i + 1 < len(argv):
+            loadModule(argv[i + 1])
+            i += 2
+        elif argv[i] == '--protocol' and i + 1 < len(argv):
+            protocol = int(argv[i + 1])
+            i += 2
+        elif argv[i] == '--data-dir' and i + 1 < len(argv):
+            data_directory = argv[i + 1]
+            i += 2
+        elif argv[i] == '--workers' and i + 1 < len(argv):
+            worker_count = int(argv[i + 1])
+            i += 2
+        elif argv[i] == '--switch-interval' and i + 1 < len(argv):
+            switch_interval = int(argv[i + 1])
+            i += 2
+        elif argv[i] == '--zygote':
+            zygote = True
+            i += 1
+        else:
+            i += 1
+
+
+def get_input():
+    line = stdin.readline()
+    if not line:
+        sys.exit()
+    return line.decode('utf-8').rstrip('\r\n')
+
+
+# The binary payload of a command follows its json line, and is always read, even if the command fails,
+# so that the next command starts at the right place in the stream
+def get_payload(length):
+    payload = stdin.read(length)
+    if len(payload) != length:
+        sys.exit()
+    return payload
+
+
+# *****************************************************************************
+# * Protocol 2: framed messages
+# *****************************************************************************
+
+def read_frame():
+    header = get_payload(HEADER.size)
+    magic, version, opcode, status, priority, request_id, length = HEADER.unpack(header)
+    if magic != MAGIC or version != VERSION:
+        log(ERROR, 'Bad frame header: ', binascii.hexlify(header))
+        sys.exit()
+
+    body = get_payload(length)
+
+    request = {}
+    payload = b''
+    if length > 0:
+        json_length = JSON_LENGTH.unpack_from(body, 0)[0]
+        if json_length > 0:
+            request = json.loads(body[JSON_LENGTH.size:JSON_LENGTH.size + json_length].decode('utf-8'))
+        payload = memoryview(body)[JSON_LENGTH.size + json_length:] if sys.version_info[0] >= 3 else body[JSON_LENGTH.size + json_length:]
+
+    request['command'] = opcodes[opcode] if opcode < len(opcodes) else str(opcode)
+    priority = PRIORITIES[priority] if priority < len(PRIORITIES) else 'normal'
+    return opcode, request_id, priority, request, payload
+
+
+def write_frame(opcode, request_id, response):
+    status = 0 if response.pop('status', 'ok') == 'ok' else 1
+    binary = response.pop('binary', b'')
+    encoded = json.dumps(response).encode('utf-8') if response else b''
+
+    length = JSON_LENGTH.size + len(encoded) + len(binary)
+    with output_lock:
+        stderr.write(HEADER.pack(MAGIC, VERSION, opcode, status, 0, request_id, length))
+        stderr.write(JSON_LENGTH.pack(len(encoded)))
+        stderr.write(encoded)
+        stderr.write(binary)
+        stderr.flush()
+
+
+def answer_frame(opcode, request_id, request, payload):
+    write_frame(opcode, request_id, execute(request, payload))
 
 
+def framed_loop():
 
+    write_frame(HELLO, 0, {'version': VERSION})
 
-commands = {'quit': 'quit()', 'run': 'run()', 'get': 'get()'}
+    while True:
+        opcode, request_id, priority, request, payload = read_frame()
+        if log_level >= TRACE:
+            log(TRACE, 'request = ', request_id, request['command'], priority)
 
-while True:
+        # Everything sent before quit is answered first
+        if request['command'] == 'quit':
+            drainLanes()
+            answer_frame(opcode, request_id, request, payload)
+            sys.exit()
 
-    token = "?????"
+        dispatch(request['command'], priority, answer_frame, opcode, request_id, request, payload)
 
-    json_string = get_input()
-    debug = (json_string[:200] + '...') if len(json_string) > 200 else json_string
-    print('input = ', debug)
-    sys.stdout.flush()
 
+# *****************************************************************************
+# * Protocol 1: json lines
+# *****************************************************************************
+
+def json_loop():
+
+    while True:
+
+        token = "?????"
+        payload = b''
+
+        json_string = get_input()
+        if log_level >= TRACE:
+            debug = (json_string[:200] + '...') if len(json_string) > 200 else json_string
+            log(TRACE, 'input = ', debug)
+
+        try:
+            parsed_json = json.loads(json_string)
+        except Exception as e:
+            respond(token, errorResponse("Failed to parse input as json:" + str(e)))
+            log(ERROR, 'Failed to parse input as json')
+            log(ERROR, 'json_string: ', json_string)
+            log(ERROR, sys.exc_info()[0])
+            continue
+
+        if 'length' in parsed_json:
+            payload = get_payload(parsed_json['length'])
+
+        if 'token' not in parsed_json:
+            respond(token, errorResponse("No 'token' field in input"))
+            if log_level >= ERROR:
+                log(ERROR, "No 'token' field in input")
+                log(ERROR, json.dumps(parsed_json, sort_keys=True, indent=4, separators=(',', ': ')))
+            continue
+
+        token = parsed_json['token']
+        command_string = parsed_json.get('command')
+        if log_level >= TRACE:
+            log(TRACE, 'token = ', token)
+            log(TRACE, 'command_string = ', command_string)
+
+        if command_string == 'quit':
+            drainLanes()
+            respond(token, execute(parsed_json, payload))
+            sys.exit()
+
+        dispatch(command_string, parsed_json.get('priority', 'normal'), answer_line, token, parsed_json, payload)
+
+
+def answer_line(token, request, payload):
+    respond(token, execute(request, payload))
+
+
+
+# When the input ends, whatever was read before is still answered
+def serve():
+    startLanes()
     try:
-        parsed_json = json.loads(json_string)
-    except Exception as e:
-        errorResponse("Failed to parse input as json:" + str(e))
-        print('Failed to parse input as json')
-        print('json_string: ', json_string)
-        print( sys.exc_info()[0] )
-        sys.stdout.flush()
-        continue
+        if protocol == VERSION:
+            framed_loop()
+        else:
+            json_loop()
+    finally:
+        drainLanes()
 
-    if 'token' not in parsed_json:
-        errorResponse("No 'token' field in input")
-        print("No 'token' field in input")
-        print(json.dumps(parsed_json, sort_keys=True, indent=4, separators=(',', ': ')))
-        sys.stdout.flush()
-        continue
 
-    token = parsed_json['token']
-    print('token = ', token)
-    sys.stdout.flush()
+# *****************************************************************************
+# * Zygote: fork a ready-made server for each client
+# *****************************************************************************
+#
+# The requests are json lines on stdin, and the responses json lines on stderr:
+#
+#     {"command": "fork", "logLevel": "info", "protocol": 1, "modules": []}
+#         -> {"status": "ok", "pid": 1234, "path": "/tmp/pyrunner-zygote-xyz/1"}
+#     {"command": "kill", "pid": 1234}
+#     {"command": "quit"}
+#
+# The forked server talks to its client over the named pipes path.in, path.out and path.err, which
+# both sides open in that order, and which the server removes once they are all open
 
-    if 'command' not in parsed_json:
-        errorResponse("No 'command' field in input")
-        print("No 'command' field in input")
-        print(json.dumps(parsed_json, sort_keys=True, indent=4, separators=(',', ': ')))
-        sys.stdout.flush()
-        continue
+def zygote_respond(response):
+    eprint(json.dumps(response))
 
-    command_string = parsed_json['command']
-    print('command_string = ', command_string)
-    sys.stdout.flush()
-    command = commands.get(command_string)
-    print('command = ', command)
-    sys.stdout.flush()
 
-    if command is None:
-        errorResponse("Unexpected command: " + command_string)
-        print("Unexpected command: " + command_string)
-        print(json.dumps(parsed_json, sort_keys=True, indent=4, separators=(',', ': ')))
+def worker(path, request):
+    global stdin, stderr, log_level, protocol, data_directory, worker_count, switch_interval
+
+    for fd, suffix, flags in ((0, '.in', os.O_RDONLY), (1, '.out', os.O_WRONLY), (2, '.err', os.O_WRONLY)):
+        pipe = os.open(path + suffix, flags)
+        os.dup2(pipe, fd)
+        os.close(pipe)
+    for suffix in ('.in', '.out', '.err'):
+        os.unlink(path + suffix)
+
+    signal.signal(signal.SIGCHLD, signal.SIG_DFL)
+
+    # New file objects, so that nothing buffered by the zygote is carried over
+    sys.stdout = os.fdopen(1, 'w')
+    sys.stderr = os.fdopen(2, 'w')
+    stdin = os.fdopen(0, 'rb')
+    stderr = os.fdopen(2, 'wb')
+
+    log_level = log_levels[request.get('logLevel', 'trace')]
+    protocol = request.get('protocol', 1)
+    data_directory = request.get('dataDirectory')
+    worker_count = request.get('workers', worker_count)
+    switch_interval = request.get('switchInterval', switch_interval)
+
+    try:
+        for module in request.get('modules', []):
+            if module not in modules_loaded:
+                loadModule(module)
+        serve()
+    except SystemExit:
+        pass
+    finally:
         sys.stdout.flush()
-        continue
+        os._exit(0)
+
+
+def zygote_loop():
+
+    # The forked servers are reaped automatically
+    signal.signal(signal.SIGCHLD, signal.SIG_IGN)
 
+    directory = tempfile.mkdtemp(prefix='pyrunner-zygote-')
+    count = 0
     try:
-        eval( command )
+        while True:
+            request = json.loads(get_input())
+            command = request.get('command')
 
-    except Exception as e:
-        errorResponse(str(e))
-        print("Caught exception: " + str(e))
-        print( sys.exc_info()[0] )
-        print(json.dumps(parsed_json, sort_keys=True, indent=4, separators=(',', ': ')))
-        sys.stdout.flush()
-        continue
+            if command == 'fork':
+                count += 1
+                path = os.path.join(directory, str(count))
+                for suffix in ('.in', '.out', '.err'):
+                    os.mkfifo(path + suffix)
 
+                sys.stdout.flush()
+                sys.stderr.flush()
+                pid = os.fork()
+                if pid == 0:
+                    worker(path, request)
 
+                response = okResponse()
+                response['pid'] = pid
+                response['path'] = path
+                zygote_respond(response)
 
+            elif command == 'kill':
+                try:
+                    os.kill(request['pid'], signal.SIGTERM)
+                except OSError:
+                    pass
+                zygote_respond(okResponse())
 
+            elif command == 'quit':
+                zygote_respond(okResponse())
+                break
 
+            else:
+                zygote_respond(errorResponse("Unexpected command: " + str(command)))
+    finally:
+        shutil.rmtree(directory, ignore_errors=True)
 
 
 
+if __name__ == '__main__':
+    parse_options(sys.argv)
+
+    if zygote:
+        zygote_loop()
+    else:
+        serve()
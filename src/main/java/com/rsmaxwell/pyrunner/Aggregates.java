@@ -0,0 +1,139 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+import org.json.JSONObject;
+
+/**
+ * The aggregates of a field as the server last brought them up to date. A statistic which was not declared, or which has no value
+ * because the field is empty, is null
+ */
+public class Aggregates {
+
+    private final long count;
+    private final Double sum;
+    private final Double min;
+    private final Double max;
+    private final Double mean;
+    private final Double variance;
+    private final Map<String, Object> reductions;
+
+    public Aggregates(long count, Double sum, Double min, Double max, Double mean, Double variance, Map<String, Object> reductions) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.variance = variance;
+        this.reductions = Collections.unmodifiableMap(reductions);
+    }
+
+    static Aggregates fromJson(JSONObject jObject) {
+
+        Map<String, Object> reductions = new HashMap<String, Object>();
+        JSONObject jReducers = jObject.optJSONObject("reducers");
+        if (jReducers != null) {
+            Iterator<String> names = jReducers.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                reductions.put(name, jReducers.get(name));
+            }
+        }
+
+        return new Aggregates(jObject.getLong("count"), toDouble(jObject, "sum"), toDouble(jObject, "min"), toDouble(jObject, "max"),
+                toDouble(jObject, "mean"), toDouble(jObject, "variance"), reductions);
+    }
+
+    /**
+     * The aggregates of two parts of a field taken together. The reductions are combined with the given reducers, by name, and any without
+     * one are dropped
+     */
+    public Aggregates plus(Aggregates other, Map<String, BinaryOperator<Object>> reducers) {
+
+        long total = count + other.count;
+
+        Double combinedMean = null;
+        Double combinedVariance = null;
+        if (mean != null && other.mean != null) {
+            combinedMean = (count * mean + other.count * other.mean) / total;
+        } else if (mean != null || other.mean != null) {
+            combinedMean = (mean != null) ? mean : other.mean;
+        }
+        if (variance != null && other.variance != null) {
+            // Combine the sums of squared deviations (Chan et al.)
+            double difference = other.mean - mean;
+            double m2 = variance * count + other.variance * other.count + difference * difference * count * other.count / total;
+            combinedVariance = m2 / total;
+        } else if (variance != null || other.variance != null) {
+            combinedVariance = (variance != null) ? variance : other.variance;
+        }
+
+        Map<String, Object> combined = new HashMap<String, Object>();
+        for (Map.Entry<String, BinaryOperator<Object>> reducer : reducers.entrySet()) {
+            String name = reducer.getKey();
+            if (reductions.containsKey(name) && other.reductions.containsKey(name)) {
+                combined.put(name, reducer.getValue().apply(reductions.get(name), other.reductions.get(name)));
+            }
+        }
+
+        return new Aggregates(total, add(sum, other.sum, Double::sum), add(min, other.min, Math::min), add(max, other.max, Math::max),
+                combinedMean, combinedVariance, combined);
+    }
+
+    /**
+     * Combine two statistics, either of which may be missing because its part is empty
+     */
+    private static Double add(Double a, Double b, BinaryOperator<Double> operator) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return operator.apply(a, b);
+    }
+
+    private static Double toDouble(JSONObject jObject, String key) {
+        Object jData = jObject.opt(key);
+        return (jData instanceof Number) ? ((Number) jData).doubleValue() : null;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public Double getSum() {
+        return sum;
+    }
+
+    public Double getMin() {
+        return min;
+    }
+
+    public Double getMax() {
+        return max;
+    }
+
+    public Double getMean() {
+        return mean;
+    }
+
+    public Double getVariance() {
+        return variance;
+    }
+
+    /**
+     * The value of a reducer, as decoded by org.json (JSONObject.NULL for None)
+     */
+    public Object getReduction(String name) {
+        return reductions.get(name);
+    }
+
+    public Map<String, Object> getReductions() {
+        return reductions;
+    }
+}
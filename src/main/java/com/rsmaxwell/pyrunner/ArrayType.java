@@ -0,0 +1,14 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * How the server stores the values of a field
+ * 
+ * list: a python list of float objects, about 32 bytes a value, which python code may fill with anything
+ * 
+ * float64: an array('d') of unboxed doubles, 8 bytes a value, which binary extends append to in bulk
+ * 
+ * int64: an array of unboxed 64 bit integers, 8 bytes a value, appended to by extendArray with long values
+ */
+public enum ArrayType {
+    list, float64, int64;
+}
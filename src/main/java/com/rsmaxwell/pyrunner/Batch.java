@@ -0,0 +1,105 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * An ordered list of operations which is sent to the server as a single "batch" command, and answered with a single response.
+ * 
+ * The values of extendArray operations are always sent in binary, concatenated after the command in the order of the operations.
+ */
+public class Batch {
+
+    private final RunnerAsync asyncClient;
+    private final JSONArray operations;
+    private final ByteArrayOutputStream payload;
+    private boolean stopOnError;
+
+    Batch(RunnerAsync asyncClient) {
+        this.asyncClient = asyncClient;
+        this.operations = new JSONArray();
+        this.payload = new ByteArrayOutputStream();
+        this.stopOnError = true;
+    }
+
+    public Batch createArray(String field) {
+        operations.put(RunnerAsync.createArrayCommand(field));
+        return this;
+    }
+
+    public Batch createArray(String field, ArrayType type) {
+        operations.put(RunnerAsync.createArrayCommand(field, type));
+        return this;
+    }
+
+    public Batch extendArray(String field, List<Double> list) throws RunnerException {
+        byte[] bytes = RunnerAsync.toPayload(list);
+        if (bytes.length > Integer.MAX_VALUE - payload.size()) {
+            throw new RunnerException("The values of the batch are too large for one payload");
+        }
+        operations.put(RunnerAsync.extendArrayBinaryCommand(field, bytes.length));
+        payload.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    public Batch runPythonFunction(String pythonFunction) {
+        operations.put(RunnerAsync.runPythonFunctionCommand(pythonFunction));
+        return this;
+    }
+
+    public Batch callFunction(FunctionHandle function, Object... arguments) {
+        operations.put(RunnerAsync.callCommand(function, arguments));
+        return this;
+    }
+
+    public Batch getResult() {
+        operations.put(RunnerAsync.getCommand("result"));
+        return this;
+    }
+
+    public Batch getArray(String field, int offset, int length) {
+        operations.put(RunnerAsync.getArrayCommand(field, offset, length));
+        return this;
+    }
+
+    public Batch ping() {
+        operations.put(RunnerAsync.simpleCommand("ping"));
+        return this;
+    }
+
+    /**
+     * When true (the default) the server stops at the first failing operation, and the batch fails with its message. When false every
+     * operation is executed and each one's status is reported in the BatchResult
+     */
+    public Batch stopOnError(boolean stopOnError) {
+        this.stopOnError = stopOnError;
+        return this;
+    }
+
+    public int size() {
+        return operations.length();
+    }
+
+    public CompletableFuture<BatchResult> send() throws IOException {
+        return asyncClient.request(this).thenApply(response -> new BatchResult(response.json()));
+    }
+
+    JSONObject toCommand() {
+        JSONObject jObject = RunnerAsync.simpleCommand("batch");
+        jObject.put("arguments", operations);
+        jObject.put("stopOnError", stopOnError);
+        if (payload.size() > 0) {
+            jObject.put("length", payload.size());
+        }
+        return jObject;
+    }
+
+    byte[] toPayload() {
+        return (payload.size() > 0) ? payload.toByteArray() : null;
+    }
+}
@@ -0,0 +1,53 @@
+package com.rsmaxwell.pyrunner;
+
+import java.nio.DoubleBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The responses to the operations of a Batch, in the order they were added
+ */
+public class BatchResult {
+
+    private final JSONArray results;
+
+    public BatchResult(JSONObject jObject) {
+        results = jObject.optJSONArray("results");
+    }
+
+    public int size() {
+        return (results == null) ? 0 : results.length();
+    }
+
+    public JSONObject get(int index) {
+        return results.getJSONObject(index);
+    }
+
+    public boolean isOk(int index) {
+        return "ok".equals(get(index).optString("status"));
+    }
+
+    public String getMessage(int index) {
+        return get(index).optString("message", null);
+    }
+
+    public double[] getArray(int index) throws RunnerException {
+        JSONObject jObject = get(index);
+        if (!"ok".equals(jObject.optString("status"))) {
+            throw new RunnerException("operation " + index + ": " + jObject.optString("message", "unexpected error"));
+        }
+        DoubleBuffer values = RunnerAsync.decodeArray(jObject);
+        double[] array = new double[values.remaining()];
+        values.get(array);
+        return array;
+    }
+
+    public Result getResult(int index) throws RunnerException {
+        JSONObject jObject = get(index);
+        if (!"ok".equals(jObject.optString("status"))) {
+            throw new RunnerException("operation " + index + ": " + jObject.optString("message", "unexpected error"));
+        }
+        return RunnerAsync.handleResponseGetResult(jObject);
+    }
+}
@@ -0,0 +1,95 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * The latencies and failures of one command, from when a request is made until its response arrives. Times are in microseconds
+ */
+public class CommandStatistics {
+
+    private final String command;
+    private final long count;
+    private final long errors;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] buckets;
+
+    CommandStatistics(String command, long errors, long totalNanos, long maxNanos, long[] buckets) {
+        this.command = command;
+        this.errors = errors;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.buckets = buckets;
+
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        this.count = count;
+    }
+
+    /**
+     * The sum of two sets of statistics for the same command
+     */
+    CommandStatistics plus(CommandStatistics other) {
+        long[] sum = buckets.clone();
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += other.buckets[i];
+        }
+        return new CommandStatistics(command, errors + other.errors, totalNanos + other.totalNanos, Math.max(maxNanos, other.maxNanos), sum);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * The number of responses, including failures
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getMeanMicros() {
+        return (count == 0) ? 0 : totalNanos / 1000.0 / count;
+    }
+
+    public double getMaxMicros() {
+        return maxNanos / 1000.0;
+    }
+
+    public double getP50Micros() {
+        return percentile(0.50);
+    }
+
+    public double getP90Micros() {
+        return percentile(0.90);
+    }
+
+    public double getP99Micros() {
+        return percentile(0.99);
+    }
+
+    private double percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.upperBound(i), maxNanos) / 1000.0;
+            }
+        }
+        return getMaxMicros();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-16s count: %8d  errors: %6d  mean: %10.1f  p50: %10.1f  p90: %10.1f  p99: %10.1f  max: %10.1f", command, count, errors,
+                getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getMaxMicros());
+    }
+}
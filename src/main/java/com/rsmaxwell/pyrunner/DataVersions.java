@@ -0,0 +1,118 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * The client's copy of the server's data versions, taken from the responses to mutations, and the number of mutations still in flight.
+ * 
+ * The server bumps a generation on every mutation, an epoch on code which may change any field ("run", "call", "registerFunction"), and
+ * the version of a field on an extend or a restore, or when aggregates or reducers are declared on it. A read made while no mutation is in
+ * flight is stamped with the versions of the moment. The server handles requests in order, so what it read stays current for as long as
+ * the stamp matches the versions and no mutation is in flight.
+ */
+class DataVersions {
+
+    private static final Set<String> mutations = new HashSet<String>(Arrays.asList("run", "call", "registerFunction", "extend", "extendShared",
+            "restore", "aggregate", "addReducer", "batch"));
+
+    /**
+     * The versions which a value read from a field depends on; for the result of a query, which may read any field, the field is null and
+     * the generation is what counts
+     */
+    static final class Stamp {
+
+        final String field;
+        final long generation;
+        final long epoch;
+        final long version;
+
+        Stamp(String field, long generation, long epoch, long version) {
+            this.field = field;
+            this.generation = generation;
+            this.epoch = epoch;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) object;
+            return Objects.equals(field, other.field) && generation == other.generation && epoch == other.epoch && version == other.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(field, generation, epoch, version);
+        }
+    }
+
+    private int inFlight;
+    private long generation;
+    private long epoch;
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+
+    static boolean isMutation(String command) {
+        return mutations.contains(command);
+    }
+
+    synchronized void begin() {
+        inFlight++;
+    }
+
+    /**
+     * A mutation has been answered, or given up on, in which case the response is null
+     */
+    synchronized void end(JSONObject response) {
+        inFlight--;
+        if (response == null) {
+            return;
+        }
+
+        generation = Math.max(generation, response.optLong("generation", generation));
+        epoch = Math.max(epoch, response.optLong("epoch", epoch));
+
+        JSONObject changed = response.optJSONObject("versions");
+        if (changed != null) {
+            Iterator<String> fields = changed.keys();
+            while (fields.hasNext()) {
+                String field = fields.next();
+                versions.put(field, Math.max(version(field), changed.getLong(field)));
+            }
+        }
+    }
+
+    private long version(String field) {
+        Long version = versions.get(field);
+        return (version == null) ? 0 : version;
+    }
+
+    /**
+     * The stamp for a read which is about to be sent, or null if a mutation is in flight, in which case what is read cannot be kept
+     */
+    synchronized Stamp stamp(String field) {
+        if (inFlight > 0) {
+            return null;
+        }
+        return new Stamp(field, generation, epoch, (field == null) ? 0 : version(field));
+    }
+
+    synchronized boolean isCurrent(Stamp stamp) {
+        if (inFlight > 0) {
+            return false;
+        }
+        if (stamp.field == null) {
+            return stamp.generation == generation;
+        }
+        return stamp.epoch == epoch && stamp.version == version(stamp.field);
+    }
+}
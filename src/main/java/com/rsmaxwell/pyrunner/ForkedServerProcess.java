@@ -0,0 +1,205 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A server forked by a Zygote, which talks over the named pipes the zygote made for it
+ */
+class ForkedServerProcess implements ServerProcess {
+
+    private static final long openTimeout = 10000;
+    private static final long pollInterval = 10;
+    private static final String[] suffixes = { ".in", ".out", ".err" };
+
+    private static class Pipes {
+
+        OutputStream stdin;
+        InputStream stdout;
+        InputStream stderr;
+
+        void close() {
+            for (AutoCloseable stream : new AutoCloseable[] { stdin, stdout, stderr }) {
+                try {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                } catch (Exception e) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    private final Zygote zygote;
+    private final long pid;
+    private final String startTime;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+    private final InputStream stderr;
+
+    /**
+     * Open the pipes in the same order as the server does, each open waiting for the other end. An open cannot be timed out, so the pipes
+     * are opened on a thread of their own, and if the server dies, or does not open them in time, the thread is let go by opening the other
+     * end of each pipe
+     */
+    ForkedServerProcess(Zygote zygote, long pid, String path) throws IOException {
+        this.zygote = zygote;
+        this.pid = pid;
+        this.startTime = startTime(pid);
+
+        FutureTask<Pipes> task = new FutureTask<Pipes>(() -> open(path));
+        Thread thread = new Thread(task, ForkedServerProcess.class.getName() + ".open." + pid);
+        thread.setDaemon(true);
+        thread.start();
+
+        Pipes pipes;
+        try {
+            pipes = await(task, path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(task, path);
+            throw new InterruptedIOException("Interrupted while opening the pipes of the forked server");
+        }
+
+        this.stdin = pipes.stdin;
+        this.stdout = pipes.stdout;
+        this.stderr = pipes.stderr;
+    }
+
+    private static Pipes open(String path) throws IOException {
+        Pipes pipes = new Pipes();
+        try {
+            pipes.stdin = new FileOutputStream(path + ".in");
+            pipes.stdout = new FileInputStream(path + ".out");
+            pipes.stderr = new FileInputStream(path + ".err");
+        } catch (IOException e) {
+            pipes.close();
+            throw e;
+        }
+        return pipes;
+    }
+
+    private Pipes await(FutureTask<Pipes> task, String path) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openTimeout);
+        while (true) {
+            try {
+                return task.get(pollInterval, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not open the pipes of the forked server: " + e.getCause().getMessage(), e.getCause());
+            } catch (TimeoutException e) {
+                if (!isAlive()) {
+                    abandon(task, path);
+                    throw new IOException("The forked server exited before opening its pipes (pid = " + pid + ")");
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    abandon(task, path);
+                    throw new IOException("The forked server did not open its pipes within " + openTimeout + " ms (pid = " + pid + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * Let the opening thread go, and close whatever it opened. A pipe opened for both reading and writing never waits, and completes any
+     * open waiting on the other end. The pipes are still there, since the server only removes them once it has opened all three
+     */
+    private void abandon(FutureTask<Pipes> task, String path) {
+        if (isAlive()) {
+            zygote.kill(pid);
+        }
+        while (true) {
+            for (String suffix : suffixes) {
+                if (!new File(path + suffix).exists()) {
+                    continue;
+                }
+                try (RandomAccessFile pipe = new RandomAccessFile(path + suffix, "rw")) {
+                    // opened, and so any open waiting on it has completed
+                } catch (IOException e) {
+                    // removed since
+                }
+            }
+            try {
+                task.get(pollInterval, TimeUnit.MILLISECONDS).close();
+                return;
+            } catch (TimeoutException e) {
+                // the thread has moved on to the next pipe
+            } catch (ExecutionException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The time the process started, in clock ticks after boot, or null if there is no such process. A pid may be reused once its process
+     * has gone, but not with the same start time
+     */
+    private static String startTime(long pid) {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/" + pid + "/stat")), StandardCharsets.UTF_8);
+
+            // The name of the command is in brackets, and may have spaces and brackets of its own. The start time is field 22
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return fields[19];
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return stdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return stdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return stderr;
+    }
+
+    @Override
+    public Long getProcessId() {
+        return pid;
+    }
+
+    /**
+     * The zygote reaps its children as soon as they exit, so a child which is still in /proc, with the start time it had when it was
+     * forked, is alive
+     */
+    @Override
+    public boolean isAlive() {
+        return startTime != null && startTime.equals(startTime(pid));
+    }
+
+    @Override
+    public void destroy() {
+        if (isAlive()) {
+            zygote.kill(pid);
+        }
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            // the server has gone already
+        }
+    }
+}
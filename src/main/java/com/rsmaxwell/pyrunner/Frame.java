@@ -0,0 +1,78 @@
+package com.rsmaxwell.pyrunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The layout of a message in the framed protocol. Every message starts with a 20 byte little-endian header:
+ * 
+ * <pre>
+ *     magic 'PR' (2), version (1), opcode (1), status (1), priority (1), padding (2), request id (8), body length (4)
+ * </pre>
+ * 
+ * The priority of a request is the ordinal of its Priority, and is zero in a response. The body is a 4 byte json length, the json (the
+ * arguments of a request, or the fields of a response), and then any binary data. Either part may be empty. On startup the server sends a
+ * HELLO frame with request id 0.
+ */
+public final class Frame {
+
+    static final byte Magic0 = 'P';
+    static final byte Magic1 = 'R';
+    static final int Version = 2;
+    static final int HeaderSize = 20;
+    static final int JsonLengthSize = 4;
+
+    // The largest body which is read. Anything larger, like any header with the wrong magic or version, means that the stream has lost
+    // its place, as when something other than a frame has been written to it
+    static final int MaxBodyLength = 1 << 30;
+
+    static final int Hello = 0;
+    static final int StatusOk = 0;
+
+    // The opcode of a command is its index in this list, which must match the list in server.py
+    private static final List<String> opcodes = Arrays.asList("hello", "quit", "ping", "run", "get", "getArray", "extend", "extendShared",
+            "batch", "loglevel", "registerFunction", "lookupFunction", "call", "query", "aggregate", "addReducer", "getAggregates",
+            "snapshot", "restore");
+
+    private Frame() {
+    }
+
+    /**
+     * The commands are all built by this package, so a command without an opcode is a bug
+     */
+    static int opcode(String command) {
+        int opcode = opcodes.indexOf(command);
+        if (opcode < 0) {
+            throw new IllegalArgumentException("No opcode for command: " + command);
+        }
+        return opcode;
+    }
+
+    static String command(int opcode) {
+        return opcodes.get(opcode);
+    }
+
+    static int opcodeCount() {
+        return opcodes.size();
+    }
+
+    /**
+     * Write the header, followed by the json length, for a request of the given sizes
+     */
+    static void putHeader(ByteBuffer buffer, int opcode, Priority priority, long id, int jsonLength, int binaryLength) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(Magic0);
+        buffer.put(Magic1);
+        buffer.put((byte) Version);
+        buffer.put((byte) opcode);
+        buffer.put((byte) StatusOk);
+        buffer.put((byte) priority.ordinal());
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.putLong(id);
+        buffer.putInt(JsonLengthSize + jsonLength + binaryLength);
+        buffer.putInt(jsonLength);
+    }
+}
@@ -0,0 +1,88 @@
+package com.rsmaxwell.pyrunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits a byte stream into the frames of the framed protocol, handing each one over with its body in its own array.
+ * 
+ * A header which is not valid, or whose body length is out of bounds, is reported as an error, after which the rest of the stream is
+ * ignored, since there is no telling where the next frame starts
+ */
+public class FrameDecoder implements StreamDecoder {
+
+    public interface FrameHandler {
+        void frame(int opcode, int status, long id, byte[] body);
+
+        void error(String message);
+    }
+
+    private final FrameHandler handler;
+    private final ByteBuffer header;
+    private byte[] body;
+    private int bodyLength;
+    private boolean failed;
+
+    public FrameDecoder(FrameHandler handler) {
+        this.handler = handler;
+        this.header = ByteBuffer.allocate(Frame.HeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !failed) {
+
+            if (body == null) {
+                int count = Math.min(header.remaining(), buffer.remaining());
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + count);
+                header.put(slice);
+                buffer.position(buffer.position() + count);
+
+                if (header.hasRemaining()) {
+                    return;
+                }
+
+                if (header.get(0) != Frame.Magic0 || header.get(1) != Frame.Magic1 || header.get(2) != Frame.Version || header.get(6) != 0
+                        || header.get(7) != 0) {
+                    failed = true;
+                    handler.error("Bad frame header");
+                    return;
+                }
+
+                int length = header.getInt(16);
+                if (length < Frame.JsonLengthSize || length > Frame.MaxBodyLength) {
+                    failed = true;
+                    handler.error("Bad frame body length: " + Integer.toUnsignedString(length));
+                    return;
+                }
+
+                body = new byte[length];
+                bodyLength = 0;
+            }
+
+            int count = Math.min(body.length - bodyLength, buffer.remaining());
+            buffer.get(body, bodyLength, count);
+            bodyLength += count;
+
+            if (bodyLength == body.length) {
+                int opcode = header.get(3) & 0xff;
+                int status = header.get(4) & 0xff;
+                long id = header.getLong(8);
+                byte[] frame = body;
+
+                header.clear();
+                body = null;
+                handler.frame(opcode, status, id, frame);
+            }
+        }
+        buffer.position(buffer.limit());
+    }
+
+    @Override
+    public void finish() {
+        if (body != null || header.position() > 0) {
+            handler.error("The stream ended part way through a frame");
+        }
+    }
+}
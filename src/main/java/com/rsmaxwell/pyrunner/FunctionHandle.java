@@ -0,0 +1,28 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * A python function which the server has compiled once and keeps, called by its integer handle
+ */
+public class FunctionHandle {
+
+    private final String name;
+    private final int handle;
+
+    public FunctionHandle(String name, int handle) {
+        this.name = name;
+        this.handle = handle;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    @Override
+    public String toString() {
+        return name + "#" + handle;
+    }
+}
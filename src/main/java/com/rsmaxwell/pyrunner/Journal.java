@@ -0,0 +1,95 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The commands which changed the state of a RunnerAsync's server, in the order they were sent, from which a standby server is brought to
+ * the same state.
+ * 
+ * Every such command is kept, payloads included, so that a new standby can be sent all of them, until they take more than the limit. The
+ * journal is then dropped: the standby which is in step stays in step, but no other can be brought up after it. The RunnerAsync locks the
+ * journal itself.
+ * 
+ * A loglevel only sets how much the server logs, and a later one replaces an earlier one, so only the latest is kept, apart from the other
+ * entries, and a standby is sent it once it has caught up.
+ */
+class Journal {
+
+    static final class Entry {
+
+        final long id;
+        final String command;
+        final byte[] payload;
+
+        Entry(long id, String command, byte[] payload) {
+            this.id = id;
+            this.command = command;
+            this.payload = payload;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final long limit;
+    private long bytes;
+    private boolean dropped;
+    private Entry logLevel;
+
+    Journal(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Whether a command changes the server's state: the mutations of the data, lookupFunction, which may give out a new handle, and
+     * loglevel
+     */
+    static boolean records(String command) {
+        return DataVersions.isMutation(command) || command.equals("lookupFunction") || command.equals("loglevel");
+    }
+
+    /**
+     * Keep the entry in place of the previous loglevel
+     */
+    void setLogLevel(Entry entry) {
+        logLevel = entry;
+    }
+
+    /**
+     * The latest loglevel, or null if none has been sent
+     */
+    Entry getLogLevel() {
+        return logLevel;
+    }
+
+    void add(Entry entry) {
+        if (dropped) {
+            return;
+        }
+
+        bytes += entry.command.length() + ((entry.payload == null) ? 0 : entry.payload.length);
+        if (bytes > limit) {
+            entries.clear();
+            dropped = true;
+        } else {
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Whether the journal still holds every command, so that a new standby can be brought up from it
+     */
+    boolean isComplete() {
+        return !dropped;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * The entries from the given index on
+     */
+    List<Entry> entries(int from) {
+        return new ArrayList<Entry>(entries.subList(from, entries.size()));
+    }
+}
@@ -0,0 +1,66 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, allocation-free histogram of latencies in nanoseconds.
+ * 
+ * Each power of two is split into 4 buckets, so a percentile read back from it is at most 25% above the true value, and the whole range of a
+ * long fits in 248 counters.
+ */
+class LatencyHistogram {
+
+    static final int SubBuckets = 4;
+    static final int Buckets = SubBuckets * 62;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Buckets);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucket(long nanos) {
+        if (nanos < SubBuckets) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - 2)) & (SubBuckets - 1);
+        return SubBuckets * (exponent - 1) + sub;
+    }
+
+    /**
+     * The largest value which falls into a bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SubBuckets) {
+            return bucket;
+        }
+        int exponent = bucket / SubBuckets + 1;
+        int sub = bucket % SubBuckets;
+        return ((long) (SubBuckets + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+        total.add(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Add the counts of each bucket into the array, returning the total of the recorded latencies
+     */
+    long addTo(long[] buckets) {
+        for (int i = 0; i < Buckets; i++) {
+            buckets[i] += counts.get(i);
+        }
+        return total.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+}
@@ -0,0 +1,89 @@
+package com.rsmaxwell.pyrunner;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into UTF-8 lines ended by LF or CRLF.
+ * 
+ * Bytes are fed in bulk, lines which lie wholly within one buffer are decoded straight out of it, and only the partial line at the end of a
+ * buffer is copied, into a reusable array, to be completed by the next one.
+ */
+public class LineDecoder implements StreamDecoder {
+
+    static final byte CarriageReturn = 13;
+    static final byte LineFeed = 10;
+
+    public interface LineHandler {
+
+        /**
+         * A line, without its ending, and the number of bytes it took up in the stream, its ending included
+         */
+        void line(String line, int length);
+    }
+
+    private final LineHandler handler;
+    private byte[] partial;
+    private int partialLength;
+
+    public LineDecoder(LineHandler handler) {
+        this.handler = handler;
+        this.partial = new byte[256];
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer) {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        int start = offset + buffer.position();
+        int end = offset + buffer.limit();
+
+        for (int i = start; i < end; i++) {
+            if (array[i] != LineFeed) {
+                continue;
+            }
+
+            if (partialLength == 0) {
+                emit(array, start, i - start, i - start + 1);
+            } else {
+                append(array, start, i - start);
+                emit(partial, 0, partialLength, partialLength + 1);
+                partialLength = 0;
+            }
+            start = i + 1;
+        }
+
+        append(array, start, end - start);
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Emit the last line if the stream ended without a line feed
+     */
+    @Override
+    public void finish() {
+        if (partialLength > 0) {
+            emit(partial, 0, partialLength, partialLength);
+            partialLength = 0;
+        }
+    }
+
+    private void append(byte[] array, int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partialLength + length, 2 * partial.length));
+        }
+        System.arraycopy(array, start, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private void emit(byte[] array, int start, int length, int consumed) {
+        if (length > 0 && array[start + length - 1] == CarriageReturn) {
+            length--;
+        }
+        handler.line(new String(array, start, length, StandardCharsets.UTF_8), consumed);
+    }
+}
@@ -0,0 +1,50 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A server started as a process of its own
+ */
+class LocalServerProcess implements ServerProcess {
+
+    private final Process process;
+
+    LocalServerProcess(Process process) {
+        this.process = process;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return process.getOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return process.getInputStream();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return process.getErrorStream();
+    }
+
+    @Override
+    public Long getProcessId() {
+        try {
+            return RunnerAsync.getProcessId(process);
+        } catch (RunnerException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    @Override
+    public void destroy() {
+        process.destroy();
+    }
+}
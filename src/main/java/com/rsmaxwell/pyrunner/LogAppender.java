@@ -0,0 +1,94 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the log lines of a Runner to its RunnerLoggers in batches, on a delivery thread shared by all Runners.
+ * 
+ * Adding a line never blocks: when the queue is full the line is dropped, and the number dropped is reported with the next batch. Each
+ * appender delivers one batch at a time, in order, and then makes way for the others, so a slow logger delays only log lines.
+ */
+class LogAppender {
+
+    static final int maxBatch = 1000;
+
+    private static final ExecutorService delivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, LogAppender.class.getName() + ".delivery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ArrayBlockingQueue<String> queue;
+    private final Set<RunnerLogger> loggers = new CopyOnWriteArraySet<RunnerLogger>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    LogAppender(int capacity) {
+        queue = new ArrayBlockingQueue<String>(capacity);
+    }
+
+    boolean attach(RunnerLogger logger) {
+        return loggers.add(logger);
+    }
+
+    boolean detach(RunnerLogger logger) {
+        return loggers.remove(logger);
+    }
+
+    boolean hasLoggers() {
+        return !loggers.isEmpty();
+    }
+
+    void add(String line) {
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            delivery.execute(deliver);
+        }
+    }
+
+    private void deliver() {
+        List<String> batch = new ArrayList<String>();
+
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            batch.add("LogAppender: " + lost + " log lines were dropped");
+        }
+        queue.drainTo(batch, maxBatch);
+
+        if (!batch.isEmpty()) {
+            for (RunnerLogger logger : loggers) {
+                try {
+                    logger.log(batch);
+                } catch (RuntimeException e) {
+                    // a broken logger must not stop the others
+                }
+            }
+        }
+
+        scheduled.set(false);
+        if ((!queue.isEmpty() || dropped.get() > 0) && scheduled.compareAndSet(false, true)) {
+            delivery.execute(deliver);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * How much is logged, by the python server to its stdout, which is forwarded to the loggers, and by the Java side of a Runner to its
+ * RunnerLoggers. A message is logged if its level is at or below the configured one
+ * 
+ * quiet: nothing, for production use
+ * 
+ * error: failures only
+ * 
+ * info: one line per command
+ * 
+ * trace: every input line and its token and command as well
+ */
+public enum LogLevel {
+    quiet, error, info, trace;
+
+    boolean includes(LogLevel level) {
+        return level.ordinal() <= ordinal();
+    }
+}
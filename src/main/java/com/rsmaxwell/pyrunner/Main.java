@@ -4,6 +4,26 @@ public class Main {
 
     public static void main(String[] args) throws Exception {
         Testcase test = new Testcase();
-        test.standardTest();
+
+        String name = (args.length > 0) ? args[0] : "standard";
+        switch (name) {
+        case "batch":
+            test.batchTest();
+            break;
+        case "function":
+            test.functionTest();
+            break;
+        case "stream":
+            test.streamTest();
+            break;
+        case "failover":
+            test.failoverTest();
+            break;
+        case "transfer":
+            test.transferTest();
+            break;
+        default:
+            test.standardTest();
+        }
     }
 }
@@ -0,0 +1,114 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of a Runner at one moment, or the sum of those of several Runners
+ */
+public class MetricsSnapshot implements RunnerMetricsMXBean {
+
+    private final int pendingRequests;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long failovers;
+    private final Map<String, CommandStatistics> commands;
+
+    MetricsSnapshot(int pendingRequests, long bytesSent, long bytesReceived, long failovers, Map<String, CommandStatistics> commands) {
+        this.pendingRequests = pendingRequests;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.failovers = failovers;
+        this.commands = commands;
+    }
+
+    static MetricsSnapshot empty() {
+        return new MetricsSnapshot(0, 0, 0, 0, Collections.<String, CommandStatistics>emptyMap());
+    }
+
+    /**
+     * The same, for a Runner which has been closed and so no longer has anything pending
+     */
+    MetricsSnapshot closed() {
+        return new MetricsSnapshot(0, bytesSent, bytesReceived, failovers, commands);
+    }
+
+    /**
+     * The sum of two snapshots
+     */
+    public MetricsSnapshot plus(MetricsSnapshot other) {
+        Map<String, CommandStatistics> sum = new LinkedHashMap<String, CommandStatistics>(commands);
+        for (CommandStatistics statistics : other.commands.values()) {
+            CommandStatistics mine = sum.get(statistics.getCommand());
+            sum.put(statistics.getCommand(), (mine == null) ? statistics : mine.plus(statistics));
+        }
+        return new MetricsSnapshot(pendingRequests + other.pendingRequests, bytesSent + other.bytesSent, bytesReceived + other.bytesReceived,
+                failovers + other.failovers, sum);
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return pendingRequests;
+    }
+
+    @Override
+    public long getRequestCount() {
+        long count = 0;
+        for (CommandStatistics statistics : commands.values()) {
+            count += statistics.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0;
+        for (CommandStatistics statistics : commands.values()) {
+            count += statistics.getErrors();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getFailoverCount() {
+        return failovers;
+    }
+
+    @Override
+    public List<CommandStatistics> getCommands() {
+        return new ArrayList<CommandStatistics>(commands.values());
+    }
+
+    /**
+     * The statistics of one command, or null if it has not been used
+     */
+    public CommandStatistics getCommand(String command) {
+        return commands.get(command);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("pending: ").append(pendingRequests);
+        text.append("  bytes sent: ").append(bytesSent);
+        text.append("  bytes received: ").append(bytesReceived);
+        text.append("  failovers: ").append(failovers);
+        for (CommandStatistics statistics : commands.values()) {
+            text.append(System.lineSeparator()).append(statistics);
+        }
+        return text.toString();
+    }
+}
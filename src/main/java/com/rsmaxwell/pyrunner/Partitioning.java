@@ -0,0 +1,32 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.Arrays;
+
+/**
+ * How a ShardedDataset spreads the values appended to a field over its shards
+ * 
+ * roundRobin: value i of the field goes to shard i mod N, continuing from one extendArray call to the next
+ * 
+ * range: the values of each extendArray call are cut into N contiguous slices of nearly equal length, slice k going to shard k
+ */
+public enum Partitioning {
+    roundRobin, range;
+
+    /**
+     * The values which go to the given shard, when they are appended to a field which already holds offset values
+     */
+    double[] part(double[] values, long offset, int shard, int shardCount) {
+        if (this == roundRobin) {
+            int first = (int) Math.floorMod(shard - offset, (long) shardCount);
+            double[] part = new double[(values.length - first + shardCount - 1) / shardCount];
+            for (int i = first, j = 0; i < values.length; i += shardCount, j++) {
+                part[j] = values[i];
+            }
+            return part;
+        }
+
+        int from = (int) ((long) values.length * shard / shardCount);
+        int to = (int) ((long) values.length * (shard + 1) / shardCount);
+        return Arrays.copyOfRange(values, from, to);
+    }
+}
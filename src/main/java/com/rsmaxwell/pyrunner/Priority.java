@@ -0,0 +1,17 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * Where the server runs a read, which it answers in the order the reads are ready rather than the order they were sent. Mutations are
+ * always normal
+ * 
+ * normal: in the order it was sent, after the commands sent before it, mutations included
+ * 
+ * fast: at once, by the thread which reads the requests, ahead of whatever is queued or running; for cheap reads
+ * 
+ * background: on one of the server's worker threads, alongside the normal commands; for reads which take a while, such as queries
+ * 
+ * A fast or background read sees the data as it is when it runs, without the mutations which are still queued.
+ */
+public enum Priority {
+    normal, fast, background;
+}
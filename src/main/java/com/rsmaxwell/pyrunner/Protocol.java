@@ -0,0 +1,12 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * The wire protocol between a RunnerAsync and its python server, chosen when the server is started
+ * 
+ * json: one json line per message, easy to read and to type by hand when debugging
+ * 
+ * framed: a fixed binary header per message (see Frame), whose body is only parsed when the response is used
+ */
+public enum Protocol {
+    json, framed;
+}
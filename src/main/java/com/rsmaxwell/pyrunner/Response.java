@@ -0,0 +1,55 @@
+package com.rsmaxwell.pyrunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * A successful response from the server.
+ * 
+ * In the json protocol it wraps the parsed line. In the framed protocol it wraps the frame body, and the json part is only parsed when it is
+ * asked for, so that responses without fields, or with only binary data, are never parsed at all.
+ */
+public class Response {
+
+    private static final JSONObject empty = new JSONObject();
+
+    private JSONObject json;
+    private final byte[] body;
+    private final int jsonLength;
+
+    Response(JSONObject json) {
+        this.json = json;
+        this.body = null;
+        this.jsonLength = 0;
+    }
+
+    Response(byte[] body) {
+        this.body = body;
+        this.jsonLength = (body.length < Frame.JsonLengthSize) ? 0 : ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    public JSONObject json() {
+        if (json == null) {
+            if (jsonLength == 0) {
+                json = empty;
+            } else {
+                json = new JSONObject(new String(body, Frame.JsonLengthSize, jsonLength, StandardCharsets.UTF_8));
+            }
+        }
+        return json;
+    }
+
+    /**
+     * The binary data which followed the json part of a frame, or null in the json protocol
+     */
+    public ByteBuffer binary() {
+        if (body == null) {
+            return null;
+        }
+        int offset = Frame.JsonLengthSize + jsonLength;
+        return ByteBuffer.wrap(body, offset, body.length - offset).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
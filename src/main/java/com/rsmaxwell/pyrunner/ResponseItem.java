@@ -1,14 +1,21 @@
 package com.rsmaxwell.pyrunner;
 
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
 
 public class ResponseItem {
 
-    public Semaphore semaphore;
-    public String line;
+    public final CompletableFuture<Response> future;
+    public final long created;
+    public Runnable onResponse;
+    int command;
+    boolean mutation;
 
-    public ResponseItem() throws InterruptedException {
-        semaphore = new Semaphore(1);
-        semaphore.acquire();
+    // A read, kept so that it can be sent again to the standby if the server dies before answering
+    String request;
+    byte[] payload;
+
+    public ResponseItem() {
+        future = new CompletableFuture<Response>();
+        created = System.nanoTime();
     }
 }
@@ -0,0 +1,139 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The results of reads which a Runner has cached, each valid for as long as the data it was read from has not changed.
+ * 
+ * Entries are evicted least recently used first once there are more than maxSize, and after ttl if one is set. Identical reads made while
+ * one is already on its way to the server wait for its response rather than sending another. Cached values are shared, so they must not be
+ * changed by the caller.
+ */
+public class ResultCache {
+
+    interface Loader<T> {
+        CompletableFuture<T> load() throws IOException, InterruptedException;
+    }
+
+    private static class CachedResult {
+
+        final Object value;
+        final DataVersions.Stamp stamp;
+        final long created;
+
+        CachedResult(Object value, DataVersions.Stamp stamp) {
+            this.value = value;
+            this.stamp = stamp;
+            this.created = System.nanoTime();
+        }
+    }
+
+    private static class Loading {
+
+        final DataVersions.Stamp stamp;
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+        Loading(DataVersions.Stamp stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    private final DataVersions versions;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, CachedResult> entries;
+    private final Map<String, Loading> loading = new ConcurrentHashMap<String, Loading>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ResultCache(DataVersions versions, final int maxSize, long ttl, TimeUnit unit) {
+        this.versions = versions;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * The cached value of a read of the field (null for a read which may depend on any field), or else the value of the loader, which is
+     * shared with identical reads made meanwhile
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key, String field, Loader<T> loader) throws RunnerException, IOException, InterruptedException {
+
+        synchronized (this) {
+            CachedResult entry = entries.get(key);
+            if (entry != null) {
+                if (isValid(entry)) {
+                    hits.increment();
+                    return (T) entry.value;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+
+        DataVersions.Stamp stamp = versions.stamp(field);
+        if (stamp == null) {
+            return Runner.waitFor(loader.load());
+        }
+
+        Loading mine = new Loading(stamp);
+        Loading theirs = loading.putIfAbsent(key, mine);
+        if (theirs != null && theirs.stamp.equals(stamp)) {
+            return Runner.waitFor((CompletableFuture<T>) theirs.future);
+        }
+        if (theirs != null && !loading.replace(key, theirs, mine)) {
+            return Runner.waitFor(loader.load());
+        }
+
+        try {
+            T value = Runner.waitFor(loader.load());
+            if (versions.isCurrent(stamp)) {
+                synchronized (this) {
+                    entries.put(key, new CachedResult(value, stamp));
+                }
+            }
+            mine.future.complete(value);
+            return value;
+        } catch (Exception e) {
+            mine.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    private boolean isValid(CachedResult entry) {
+        if (ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+            return false;
+        }
+        return versions.isCurrent(entry.stamp);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -1,114 +1,278 @@
 package com.rsmaxwell.pyrunner;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.DoubleStream;
 
-import org.json.JSONObject;
-
-import com.rsmaxwell.pyrunner.StreamReader.Operation;
-
-public class Runner implements AutoCloseable, RunnerObserver {
+public class Runner implements AutoCloseable {
 
     public RunnerAsync asyncClient;
-    private Set<RunnerLogger> loggers;
+    private final ResultCache cache;
 
     // *****************************************************************************
     // * Basic
     // *****************************************************************************
     public Runner() throws Exception {
-        asyncClient = new RunnerAsync();
-        asyncClient.attachObserver(this);
-        loggers = new HashSet<RunnerLogger>();
+        this(new RunnerConfig());
     }
 
-    public boolean attachLogger(RunnerLogger logger) throws RunnerException {
-        return loggers.add(logger);
+    public Runner(RunnerConfig config) throws Exception {
+        asyncClient = new RunnerAsync(config);
+        cache = (config.getCacheSize() > 0)
+                ? new ResultCache(asyncClient.getDataVersions(), config.getCacheSize(), config.getCacheTtl(), TimeUnit.MILLISECONDS)
+                : null;
     }
 
-    public boolean detachLogger(RunnerLogger logger) {
-        return loggers.remove(logger);
+    public boolean attachLogger(RunnerLogger logger) throws RunnerException {
+        return asyncClient.attachLogger(logger);
     }
 
-    private void log(List<String> lines) {
-        for (RunnerLogger logger : loggers) {
-            logger.log(lines);
-        }
+    public boolean detachLogger(RunnerLogger logger) {
+        return asyncClient.detachLogger(logger);
     }
 
     private void log(String line) {
-        List<String> lines = new ArrayList<String>();
-        lines.add(line);
-        log(lines);
+        asyncClient.log(LogLevel.trace, line);
     }
 
     // *****************************************************************************
-    // * Observer
+    // * Helpers
     // *****************************************************************************
-    @Override
-    public void notify(Operation operation) {
 
-        if (operation == Operation.stderr) {
-            for (String line : asyncClient.errors()) {
-                asyncClient.postResponseItem(line);
-            }
-        } else if (operation == Operation.stdout) {
-            for (String line : asyncClient.read()) {
-                log("python: " + line);
-            }
-        } else {
-            // logger
-            for (String line : asyncClient.readLog()) {
-                log(line);
+    /**
+     * Wait for a response, unwrapping the exception the future failed with
+     */
+    public static <T> T waitFor(Future<T> future) throws RunnerException, IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RunnerException) {
+                throw (RunnerException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            throw new RunnerException(cause);
+        } catch (CancellationException e) {
+            throw new RunnerException("The request was cancelled", e);
         }
     }
 
-    // *****************************************************************************
-    // * Helpers
-    // *****************************************************************************
     public void createArray(String field) throws RunnerException, IOException, InterruptedException {
-        String token = asyncClient.createArray(field);
-        log("Runner.CreateArray: token: " + token);
+        log("Runner.CreateArray: entry");
+        waitFor(asyncClient.createArray(field));
+        log("Runner.CreateArray: exit");
+    }
 
-        asyncClient.waitForResponse(token);
+    public void createArray(String field, ArrayType type) throws RunnerException, IOException, InterruptedException {
+        log("Runner.CreateArray: entry");
+        waitFor(asyncClient.createArray(field, type));
         log("Runner.CreateArray: exit");
     }
 
+    public void createMappedArray(String field, ArrayType type) throws RunnerException, IOException, InterruptedException {
+        waitFor(asyncClient.createMappedArray(field, type));
+    }
+
+    public long snapshot(String field) throws RunnerException, IOException, InterruptedException {
+        return waitFor(asyncClient.snapshot(field));
+    }
+
+    public long restore(String field) throws RunnerException, IOException, InterruptedException {
+        return waitFor(asyncClient.restore(field));
+    }
+
     public void extendArray(String field, List<Double> list) throws RunnerException, IOException, InterruptedException {
-        String token = asyncClient.extendArray(field, list);
-        log("Runner.ExtendArray: token: " + token);
+        extendArray(field, list, Transfer.text);
+    }
 
-        asyncClient.waitForResponse(token);
+    public void extendArray(String field, List<Double> list, Transfer transfer) throws RunnerException, IOException, InterruptedException {
+        log("Runner.ExtendArray: entry");
+        waitFor(asyncClient.extendArray(field, list, transfer));
         log("Runner.ExtendArray: exit");
     }
 
-    public void runPythonFunction(String pythonFunction) throws RunnerException, IOException, InterruptedException {
-        String token = asyncClient.runPythonFunction(pythonFunction);
-        log("Runner.RunPythonFunction: token: " + token);
+    public void extendArray(String field, double[] values) throws RunnerException, IOException, InterruptedException {
+        log("Runner.ExtendArray: entry");
+        waitFor(asyncClient.extendArray(field, values));
+        log("Runner.ExtendArray: exit");
+    }
+
+    public void extendArray(String field, DoubleBuffer values) throws RunnerException, IOException, InterruptedException {
+        log("Runner.ExtendArray: entry");
+        waitFor(asyncClient.extendArray(field, values));
+        log("Runner.ExtendArray: exit");
+    }
+
+    public void extendArray(String field, long[] values) throws RunnerException, IOException, InterruptedException {
+        log("Runner.ExtendArray: entry");
+        waitFor(asyncClient.extendArray(field, values));
+        log("Runner.ExtendArray: exit");
+    }
 
-        asyncClient.waitForResponse(token);
+    public void extendArray(String field, DoubleStream values) throws RunnerException, IOException, InterruptedException {
+        log("Runner.ExtendArray: entry");
+        waitFor(asyncClient.extendArray(field, values));
+        log("Runner.ExtendArray: exit");
+    }
+
+    public void runPythonFunction(String pythonFunction) throws RunnerException, IOException, InterruptedException {
+        log("Runner.RunPythonFunction: entry");
+        waitFor(asyncClient.runPythonFunction(pythonFunction));
         log("Runner.RunPythonFunction: exit");
     }
 
     public Result getResult() throws RunnerException, IOException, InterruptedException {
-        String token = asyncClient.getResult();
-        log("Runner.GetResult: token: " + token);
+        return getResult(Priority.normal);
+    }
 
-        JSONObject jObject = asyncClient.waitForResponse(token);
-        Result result = asyncClient.handleResponseGetResult(jObject);
+    public Result getResult(Priority priority) throws RunnerException, IOException, InterruptedException {
+        log("Runner.GetResult: entry");
+        Result result;
+        if (cache == null) {
+            result = waitFor(asyncClient.getResult(priority));
+        } else {
+            result = cache.get(RunnerAsync.getCommand("result").toString(), "result", () -> asyncClient.getResult(priority));
+        }
         log("Runner.GetResult: exit");
         return result;
     }
 
+    public double[] getArray(String field) throws RunnerException, IOException, InterruptedException {
+        log("Runner.GetArray: entry");
+        double[] values = waitFor(asyncClient.getArray(field));
+        log("Runner.GetArray: exit");
+        return values;
+    }
+
+    public double[] getArray(String field, int offset, int length) throws RunnerException, IOException, InterruptedException {
+        return getArray(field, offset, length, Priority.normal);
+    }
+
+    public double[] getArray(String field, int offset, int length, Priority priority) throws RunnerException, IOException, InterruptedException {
+        log("Runner.GetArray: entry");
+        double[] values = waitFor(asyncClient.getArray(field, offset, length, priority));
+        log("Runner.GetArray: exit");
+        return values;
+    }
+
+    public int getArray(String field, int offset, DoubleBuffer target) throws RunnerException, IOException, InterruptedException {
+        log("Runner.GetArray: entry");
+        int count = waitFor(asyncClient.getArray(field, offset, target));
+        log("Runner.GetArray: exit");
+        return count;
+    }
+
+    public FunctionHandle registerFunction(String name, String source) throws RunnerException, IOException, InterruptedException {
+        log("Runner.RegisterFunction: entry");
+        FunctionHandle function = waitFor(asyncClient.registerFunction(name, source));
+        log("Runner.RegisterFunction: exit");
+        return function;
+    }
+
+    public FunctionHandle lookupFunction(String name) throws RunnerException, IOException, InterruptedException {
+        return waitFor(asyncClient.lookupFunction(name));
+    }
+
+    public Object callFunction(FunctionHandle function, Object... arguments) throws RunnerException, IOException, InterruptedException {
+        return waitFor(asyncClient.callFunction(function, arguments));
+    }
+
+    /**
+     * Call a registered function which only reads the data. With a cache, identical queries are answered from it until the data changes
+     */
+    public Object query(FunctionHandle function, Object... arguments) throws RunnerException, IOException, InterruptedException {
+        return query(Priority.normal, function, arguments);
+    }
+
+    /**
+     * A query which the server may answer ahead of the commands sent before it (see Priority)
+     */
+    public Object query(Priority priority, FunctionHandle function, Object... arguments) throws RunnerException, IOException, InterruptedException {
+        if (cache == null) {
+            return waitFor(asyncClient.query(priority, function, arguments));
+        }
+        return cache.get(RunnerAsync.queryCommand(function, arguments).toString(), null, () -> asyncClient.query(priority, function, arguments));
+    }
+
+    /**
+     * The results kept by this Runner, or null if it was configured without a cache
+     */
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    public void aggregate(String field, Statistic... statistics) throws RunnerException, IOException, InterruptedException {
+        waitFor(asyncClient.aggregate(field, Arrays.asList(statistics)));
+    }
+
+    public void addReducer(String field, String name, FunctionHandle function, Object initial)
+            throws RunnerException, IOException, InterruptedException {
+        waitFor(asyncClient.addReducer(field, name, function, initial));
+    }
+
+    /**
+     * The aggregates declared on a field. With a cache, they are answered from it until the field changes
+     */
+    public Aggregates getAggregates(String field) throws RunnerException, IOException, InterruptedException {
+        return getAggregates(field, Priority.normal);
+    }
+
+    public Aggregates getAggregates(String field, Priority priority) throws RunnerException, IOException, InterruptedException {
+        if (cache == null) {
+            return waitFor(asyncClient.getAggregates(field, priority));
+        }
+        return cache.get(RunnerAsync.getAggregatesCommand(field).toString(), field, () -> asyncClient.getAggregates(field, priority));
+    }
+
+    public BatchResult execute(Batch batch) throws RunnerException, IOException, InterruptedException {
+        log("Runner.Batch: entry");
+        BatchResult result = waitFor(batch.send());
+        log("Runner.Batch: exit");
+        return result;
+    }
+
+    public Batch batch() {
+        return asyncClient.batch();
+    }
+
+    public void setLogLevel(LogLevel level) throws RunnerException, IOException, InterruptedException {
+        waitFor(asyncClient.setLogLevel(level));
+    }
+
+    public void ping() throws RunnerException, IOException, InterruptedException {
+        waitFor(asyncClient.ping());
+    }
+
+    public void ping(long timeout, TimeUnit unit) throws RunnerException, IOException, InterruptedException {
+        waitFor(RunnerAsync.withTimeout(asyncClient.ping(), timeout, unit));
+    }
+
+    public boolean isAlive() {
+        return asyncClient.isAlive();
+    }
+
+    /**
+     * The latencies, failures and traffic of this Runner so far
+     */
+    public MetricsSnapshot getMetrics() {
+        return asyncClient.getMetrics().snapshot();
+    }
+
     @Override
     public void close() throws Exception {
-        String token = asyncClient.close();
-        log("Runner.close: token: " + token);
-
-        asyncClient.waitForResponse(token);
+        log("Runner.close: entry");
+        try {
+            waitFor(asyncClient.close());
+        } finally {
+            asyncClient.HandleResponseClose();
+        }
         log("Runner.close: exit");
     }
 }
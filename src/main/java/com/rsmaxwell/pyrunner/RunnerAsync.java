@@ -1,22 +1,41 @@
 package com.rsmaxwell.pyrunner;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.DoubleStream;
+
+import javax.management.ObjectName;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.rsmaxwell.pyrunner.StreamReader.Operation;
 import com.sun.jna.Pointer;
 import com.sun.jna.platform.win32.Kernel32;
 import com.sun.jna.platform.win32.WinNT;
@@ -27,14 +46,46 @@ public class RunnerAsync {
     static final int LineFeed = 10;
     private static final String pythonProgramName = "pythonw.exe";
     private static final String launcherProgramName = "pyw.exe";
+    private static final long defaultAbandonTimeout = 60000;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, RunnerAsync.class.getName() + ".scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static String pythonExecutable;
 
     private List<RunnerObserver> observers;
-    private Map<String, ResponseItem> responseMap;
-    private List<String> logBuffer;
-    private Process process;
-    private StreamReader outputReader;
-    private StreamReader errorReader;
-    private PrintWriter printWriter;
+    private Map<Long, ResponseItem> responseMap;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Protocol protocol;
+    private volatile long abandonTimeoutNanos;
+    private volatile long defaultTimeoutNanos;
+    private ScheduledFuture<?> sweeper;
+    private final DataVersions versions = new DataVersions();
+    private final LogAppender appender;
+    private volatile LogLevel logLevel;
+    private final RunnerConfig config;
+    private volatile ServerLink link;
+    private volatile boolean closing;
+    private SharedMemory sharedMemory;
+    private final int chunkBytes;
+    private final int chunksInFlight;
+    private final RunnerMetrics metrics;
+    private ObjectName metricsName;
+
+    // The standby server, which is sent every command which changes the server's state as it is sent to the primary, and is brought
+    // up from the journal of all of them. The journal is also the lock which keeps the two in the same order
+    private final Journal journal;
+    private volatile ServerLink standby;
+    private boolean standbyLive;
+    private volatile boolean dead;
+    private final Object failoverLock = new Object();
+    private final Map<Long, Runnable> standbyResponses = new ConcurrentHashMap<Long, Runnable>();
 
     public static String findExecutableOnPath(String name) {
         for (String dirname : System.getenv("PATH").split(File.pathSeparator)) {
@@ -46,7 +97,17 @@ public class RunnerAsync {
         return null;
     }
 
-    public static String findPythonExecutable() throws RunnerException {
+    /**
+     * The first python on the PATH, which is looked for once
+     */
+    public static synchronized String findPythonExecutable() throws RunnerException {
+        if (pythonExecutable == null) {
+            pythonExecutable = searchPythonExecutable();
+        }
+        return pythonExecutable;
+    }
+
+    private static String searchPythonExecutable() throws RunnerException {
         List<String> programs = new ArrayList<String>();
 
         String os = System.getProperty("os.name");
@@ -75,7 +136,7 @@ public class RunnerAsync {
         return programPath;
     }
 
-    private static Long getProcessId(Process process) throws RunnerException {
+    static Long getProcessId(Process process) throws RunnerException {
         String os = System.getProperty("os.name");
         if (os.startsWith("Windows")) {
             return windowsProcessId(process);
@@ -124,75 +185,481 @@ public class RunnerAsync {
     }
 
     public RunnerAsync() throws Exception {
+        this(new RunnerConfig());
+    }
+
+    public RunnerAsync(RunnerConfig config) throws Exception {
 
-        observers = new ArrayList<RunnerObserver>();
-        responseMap = new HashMap<String, ResponseItem>();
-        logBuffer = new ArrayList<String>();
+        chunkBytes = payloadLength(config.getChunkSize());
+        chunksInFlight = config.getChunksInFlight();
+        protocol = config.getProtocol();
+        metrics = new RunnerMetrics(this);
+
+        observers = new CopyOnWriteArrayList<RunnerObserver>();
+        responseMap = new ConcurrentHashMap<Long, ResponseItem>();
+        appender = new LogAppender(config.getLogCapacity());
+        logLevel = config.getClientLogLevel();
+        abandonTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(defaultAbandonTimeout);
+
+        if (config.isStandby() && config.getDataDirectory() != null) {
+            throw new RunnerException("A standby server cannot share the data directory of its primary");
+        }
+        this.config = config;
+        this.journal = config.isStandby() ? new Journal(config.getJournalLimit()) : null;
 
         // *************************************************************************
-        // * Find the python program path
+        // * Fork the python server from a zygote, or launch it, and capture its standard streams
         // *************************************************************************
-        String programPath = findPythonExecutable();
-        log("programPath: " + programPath);
+        ServerProcess process = startServer(config);
+        log(LogLevel.info, () -> "RunnerAsync: pid = " + process.getProcessId());
+        link = new ServerLink(this, process, config, observers);
+
+        if (journal != null) {
+            startStandby();
+        }
+
+        metricsName = RunnerMetrics.register(metrics, "Runner");
 
         // *************************************************************************
-        // * Launch the python server
+        // * Periodically drop responses which nobody has waited for
         // *************************************************************************
+        sweeper = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireAbandoned();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private ServerProcess startServer(RunnerConfig config) throws IOException, RunnerException {
+        if (config.getZygote() != null) {
+            return config.getZygote().fork(config);
+        }
+        return launch(config);
+    }
+
+    private ServerProcess launch(RunnerConfig config) throws IOException, RunnerException {
+
+        String programPath = findPythonExecutable();
+        log(LogLevel.info, () -> "programPath: " + programPath);
+
         final ProcessBuilder pb = new ProcessBuilder();
 
         final List<String> command = new ArrayList<String>();
         command.add(programPath);
         command.add("server.py");
+        command.add("--log-level");
+        command.add(config.getLogLevel().name());
+        for (String module : config.getModules()) {
+            command.add("--module");
+            command.add(module);
+        }
+        if (protocol == Protocol.framed) {
+            command.add("--protocol");
+            command.add(Integer.toString(Frame.Version));
+        }
+        if (config.getDataDirectory() != null) {
+            command.add("--data-dir");
+            command.add(config.getDataDirectory());
+        }
+        command.add("--workers");
+        command.add(Integer.toString(config.getWorkerThreads()));
+        if (config.getSwitchInterval() > 0) {
+            command.add("--switch-interval");
+            command.add(Long.toString(config.getSwitchInterval()));
+        }
         pb.command(command);
         pb.redirectInput();
 
-        process = pb.start();
-        log("RunnerAsync: pid = " + getProcessId(process));
+        return new LocalServerProcess(pb.start());
+    }
 
-        // *************************************************************************
-        // * Capture the standard streams
-        // *************************************************************************
-        outputReader = new StreamReader(process.getInputStream(), Operation.stdout, observers);
-        outputReader.start();
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Register the request in the response map and then send it, so that the entry is always there by the time the response arrives
+     * 
+     * The returned future is completed by the reader thread with the response, or exceptionally with a RunnerException if the status is not
+     * "ok", or with a TimeoutException if a default timeout has been set and expires first
+     */
+    CompletableFuture<Response> request(JSONObject jObject, byte[] payload, ResponseItem responseItem) throws IOException {
+        return request(jObject, payload, (payload == null) ? 0 : payload.length, responseItem);
+    }
+
+    /**
+     * As above, sending only the first length bytes of the payload. The payload has been written to the server by the time this returns, so
+     * the caller may reuse it
+     */
+    CompletableFuture<Response> request(JSONObject jObject, byte[] payload, int length, ResponseItem responseItem) throws IOException {
 
-        errorReader = new StreamReader(process.getErrorStream(), Operation.stderr, observers);
-        errorReader.start();
+        long id = nextId.getAndIncrement();
+        String command = jObject.getString("command");
+        responseItem.command = Frame.opcode(command);
+        responseItem.mutation = DataVersions.isMutation(command);
 
-        OutputStream stdin = process.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stdin));
-        printWriter = new PrintWriter(writer);
+        if (journal == null) {
+            return send(id, jObject, payload, length, responseItem);
+        }
+
+        // The command is mirrored after it has been registered, so that the standby cannot answer a request which is not known yet
+        synchronized (journal) {
+            if (!Journal.records(command)) {
+                responseItem.request = jObject.toString();
+                responseItem.payload = (payload == null) ? null : Arrays.copyOf(payload, length);
+                return send(id, jObject, payload, length, responseItem);
+            }
+
+            Journal.Entry entry = journalEntry(id, jObject, payload, length);
+            if (command.equals("loglevel")) {
+                journal.setLogLevel(entry);
+            } else {
+                journal.add(entry);
+            }
+            CompletableFuture<Response> future = send(id, jObject, payload, length, responseItem);
+            if (standbyLive) {
+                mirror(entry);
+            }
+            return future;
+        }
     }
 
-    public List<String> read() {
-        return outputReader.read();
+    private CompletableFuture<Response> send(long id, JSONObject jObject, byte[] payload, int length, ResponseItem responseItem) throws IOException {
+
+        ServerLink target = link;
+        if (target.hasEnded() && (journal == null || dead)) {
+            metrics.response(responseItem.command, 0, false);
+            responseItem.future.completeExceptionally(new RunnerException("The python server has exited"));
+            return responseItem.future;
+        }
+
+        if (responseItem.mutation) {
+            versions.begin();
+        }
+
+        responseMap.put(id, responseItem);
+        try {
+            metrics.sent(target.send(id, jObject, payload, length));
+        } catch (IOException e) {
+            if (journal == null) {
+                responseMap.remove(id);
+                metrics.response(responseItem.command, System.nanoTime() - responseItem.created, false);
+                settle(responseItem, null);
+                throw e;
+            }
+            // the server has died, and the request is answered by the standby instead
+        }
+
+        // The server may have died while the request was being sent, after its pending requests were failed
+        if (target.hasEnded() && (journal == null || dead) && responseMap.remove(id, responseItem)) {
+            settle(responseItem, null);
+            metrics.response(responseItem.command, System.nanoTime() - responseItem.created, false);
+            responseItem.future.completeExceptionally(new RunnerException("The python server has exited"));
+        }
+
+        long timeout = defaultTimeoutNanos;
+        if (timeout > 0) {
+            withTimeout(responseItem.future, timeout, TimeUnit.NANOSECONDS);
+        }
+        return responseItem.future;
     }
 
-    public List<String> errors() {
-        return errorReader.read();
+    // *****************************************************************************
+    // * Failover
+    // *****************************************************************************
+
+    /**
+     * How a mutation is kept in the journal. Values appended through shared memory are kept as a binary extend, since the region is reused
+     * once the primary has read it
+     */
+    private Journal.Entry journalEntry(long id, JSONObject jObject, byte[] payload, int length) throws IOException {
+        if ("extendShared".equals(jObject.getString("command"))) {
+            JSONArray jArray = jObject.getJSONArray("arguments");
+            int offset = jArray.getInt(2);
+            int size = jArray.getInt(3);
+            byte[] bytes = getSharedMemory().read(offset, size);
+            return new Journal.Entry(id, extendArrayBinaryCommand(jArray.getString(0), size).toString(), bytes);
+        }
+        return new Journal.Entry(id, jObject.toString(), (payload == null) ? null : Arrays.copyOf(payload, length));
     }
 
-    private String makeToken() {
-        return UUID.randomUUID().toString();
+    /**
+     * Send a mutation to the standby as well. If it cannot be sent, the standby is dying and is brought up again from the journal
+     */
+    private void mirror(Journal.Entry entry) {
+        ServerLink target = standby;
+        try {
+            target.send(entry.id, new JSONObject(entry.command), entry.payload, (entry.payload == null) ? 0 : entry.payload.length);
+        } catch (IOException e) {
+            log(LogLevel.error, () -> "RunnerAsync.mirror: Error: " + e.getMessage());
+        }
     }
 
-    public JSONObject waitForResponse(String token) throws RunnerException, InterruptedException {
+    /**
+     * Called once by each server when its response stream ends. If it is the primary, the standby takes over if it is in step, and is sent
+     * the reads which the primary had not answered; otherwise every pending request fails at once rather than waiting for its timeout
+     */
+    void linkEnded(ServerLink from) {
 
-        ResponseItem responseItem = responseMap.get(token);
+        if (link == null) {
+            // the primary did not start, which the constructor reports
+            return;
+        }
+
+        if (journal == null) {
+            dead = true;
+            failPending();
+            return;
+        }
 
-        log("RunnerAsync.waitForResponse: waiting for: " + token);
-        responseItem.semaphore.acquire();
+        List<Runnable> deliveries = new ArrayList<Runnable>();
+        boolean promoted = false;
+        boolean rebuild = false;
+
+        synchronized (journal) {
+            if (from == standby) {
+                standby = null;
+                standbyLive = false;
+                rebuild = !closing;
+                if (rebuild) {
+                    log(LogLevel.error, "RunnerAsync.linkEnded: The standby server has exited");
+                }
 
-        log("RunnerAsync.waitForResponse: continuing: " + token);
-        responseMap.remove(token);
-        String line = responseItem.line;
-        // responseItem.Destroy();
+            } else if (from == link) {
+                if (standbyLive && !closing) {
+                    synchronized (failoverLock) {
+                        link = standby;
+                        standby = null;
+                        standbyLive = false;
+                        for (Long id : standbyResponses.keySet()) {
+                            Runnable delivery = standbyResponses.remove(id);
+                            if (delivery != null && responseMap.containsKey(id)) {
+                                deliveries.add(delivery);
+                            }
+                        }
+                    }
+                    metrics.failover();
+                    promoted = true;
+                    rebuild = true;
+
+                    // The pending reads were sent to the primary only
+                    for (Map.Entry<Long, ResponseItem> entry : responseMap.entrySet()) {
+                        ResponseItem responseItem = entry.getValue();
+                        if (responseItem.request != null && !responseItem.future.isDone()) {
+                            byte[] payload = responseItem.payload;
+                            try {
+                                link.send(entry.getKey(), new JSONObject(responseItem.request), payload, (payload == null) ? 0 : payload.length);
+                            } catch (IOException e) {
+                                log(LogLevel.error, () -> "RunnerAsync.linkEnded: Error: " + e.getMessage());
+                            }
+                        }
+                    }
+                } else {
+                    dead = true;
+                }
+            }
+        }
 
-        Object jData = new JSONObject(line);
+        if (promoted) {
+            log(LogLevel.error, () -> "RunnerAsync.linkEnded: The python server has exited, and the standby has taken over (pid = "
+                    + link.getProcess().getProcessId() + ")");
+        }
+        for (Runnable delivery : deliveries) {
+            delivery.run();
+        }
+        if (dead) {
+            failPending();
+        }
+        if (rebuild) {
+            startStandby();
+        }
+    }
 
-        if (!(jData instanceof JSONObject))
-            throw new RunnerException("Error: unexpected response. type = " + jData.getClass().getSimpleName());
+    /**
+     * Fail every pending request, because no server is left to answer it
+     */
+    private void failPending() {
+        for (Long id : responseMap.keySet()) {
+            ResponseItem responseItem = responseMap.remove(id);
+            if (responseItem != null) {
+                settle(responseItem, null);
+                metrics.response(responseItem.command, System.nanoTime() - responseItem.created, false);
+                responseItem.future.completeExceptionally(new RunnerException("The python server has exited"));
+            }
+        }
+    }
+
+    private void startStandby() {
+        Thread thread = new Thread(this::rebuildStandby, RunnerAsync.class.getName() + ".standby");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start a standby server and replay the journal to it. The journal is replayed in pieces, without holding up new mutations, until it
+     * has caught up, after which new mutations are sent to it as they are sent to the primary
+     */
+    private void rebuildStandby() {
+
+        synchronized (journal) {
+            if (!journal.isComplete()) {
+                log(LogLevel.error, "RunnerAsync.rebuildStandby: The journal has outgrown its limit, so no standby can be started");
+                return;
+            }
+        }
+
+        ServerLink next;
+        try {
+            next = new ServerLink(this, startServer(config), config, observers);
+        } catch (Exception e) {
+            log(LogLevel.error, () -> "RunnerAsync.rebuildStandby: Error: could not start the standby: " + e.getMessage());
+            return;
+        }
+
+        synchronized (journal) {
+            if (closing || dead || standby != null) {
+                next.destroy();
+                return;
+            }
+            standby = next;
+        }
+
+        int replayed = 0;
+        while (true) {
+            List<Journal.Entry> entries;
+            synchronized (journal) {
+                if (closing || standby != next) {
+                    next.destroy();
+                    return;
+                }
+                if (!journal.isComplete()) {
+                    log(LogLevel.error, "RunnerAsync.rebuildStandby: The journal has outgrown its limit, so no standby can be started");
+                    standby = null;
+                    next.destroy();
+                    return;
+                }
+                if (replayed == journal.size()) {
+                    // Any later loglevel is mirrored, so the latest one is sent while the journal is still locked
+                    Journal.Entry logLevel = journal.getLogLevel();
+                    if (logLevel != null) {
+                        try {
+                            next.send(logLevel.id, new JSONObject(logLevel.command), null, 0);
+                        } catch (IOException e) {
+                            // the standby has died, and another is started
+                            return;
+                        }
+                    }
+                    standbyLive = true;
+                    break;
+                }
+                entries = journal.entries(replayed);
+            }
+
+            for (Journal.Entry entry : entries) {
+                try {
+                    next.send(entry.id, new JSONObject(entry.command), entry.payload, (entry.payload == null) ? 0 : entry.payload.length);
+                } catch (IOException e) {
+                    // the standby has died, and another is started
+                    return;
+                }
+            }
+            replayed += entries.size();
+        }
 
-        JSONObject jObject = (JSONObject) jData;
+        log(LogLevel.info, () -> "RunnerAsync.rebuildStandby: standby ready: pid = " + next.getProcess().getProcessId());
+    }
+
+    /**
+     * How many times a standby has taken over from a server which died
+     */
+    public long getFailoverCount() {
+        return metrics.getFailoverCount();
+    }
+
+    /**
+     * Whether a standby is in step with the server, and would take over if it died
+     */
+    public boolean isStandbyReady() {
+        if (journal == null) {
+            return false;
+        }
+        synchronized (journal) {
+            return standbyLive;
+        }
+    }
+
+    // *****************************************************************************
+    // * Timeouts
+    // *****************************************************************************
+
+    /**
+     * Requests made after this call time out if no response arrives within the given time. Zero means wait for ever
+     */
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        defaultTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Complete the future exceptionally with a TimeoutException if it has not completed within the given time
+     */
+    public static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, long timeout, TimeUnit unit) {
+
+        final ScheduledFuture<?> task = scheduler.schedule(() -> {
+            future.completeExceptionally(new TimeoutException("No response after " + unit.toMillis(timeout) + " ms"));
+        }, timeout, unit);
+
+        future.whenComplete((value, throwable) -> task.cancel(false));
+        return future;
+    }
+
+    // *****************************************************************************
+    // * Abandoned responses
+    // *****************************************************************************
+
+    /**
+     * Requests which the caller has given up on (timed out or cancelled) and which the server has still not answered within this time of being
+     * sent are dropped
+     */
+    public void setAbandonTimeout(long timeout, TimeUnit unit) {
+        abandonTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * The live counters of this client, which are also registered with JMX
+     */
+    public RunnerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getPendingCount() {
+        return responseMap.size();
+    }
+
+    private void expireAbandoned() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Long, ResponseItem>> iterator = responseMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, ResponseItem> entry = iterator.next();
+            ResponseItem responseItem = entry.getValue();
+            if (responseItem.future.isDone() && now - responseItem.created > abandonTimeoutNanos) {
+                if (responseMap.remove(entry.getKey(), responseItem)) {
+                    settle(responseItem, null);
+                    log(LogLevel.info, () -> "RunnerAsync.expireAbandoned: dropped: " + entry.getKey());
+                }
+            }
+        }
+
+        // The standby's answers to requests which the primary has answered since
+        standbyResponses.keySet().removeIf(id -> !responseMap.containsKey(id));
+    }
+
+    /**
+     * Check the status of a response, and convert a failure into a RunnerException
+     */
+    private static JSONObject checkStatus(JSONObject jObject) throws RunnerException {
+
+        Object jData;
 
         if (!jObject.has("status"))
             throw new RunnerException("The \"status\" field is missing");
@@ -214,7 +681,7 @@ public class RunnerAsync {
         }
 
         if (!status.equals("ok")) {
-            if (message == null)
+            if (message != null)
                 throw new RunnerException(status + ": " + message);
             else
                 throw new RunnerException(status + ": unexpected error");
@@ -223,41 +690,166 @@ public class RunnerAsync {
         return jObject;
     }
 
+    /**
+     * Complete the request of a response line, on the thread which read it. Only failures are logged, so that the observers are not on the
+     * path of a response
+     */
     public void postResponseItem(String line) {
 
         try {
-            log("RunnerAsync.postResponseItem: " + line);
-
             Object jData = new JSONObject(line);
 
             if (jData instanceof JSONObject) {
                 JSONObject jObject = (JSONObject) jData;
 
-                String token;
+                Object token;
                 if (!jObject.has("token")) {
-                    log("RunnerAsync.postResponseItem: The \"token\" field is missing");
+                    log(LogLevel.error, "RunnerAsync.postResponseItem: The \"token\" field is missing");
                     return;
                 } else {
-                    jData = jObject.get("token");
-                    if (jData instanceof String) {
-                        token = (String) jData;
-                    } else {
-                        log("RunnerAsync.postResponseItem: Error: unexpected token type. jType = " + jData.getClass().getSimpleName());
+                    token = jObject.get("token");
+                    if (!(token instanceof String)) {
+                        log(LogLevel.error, () -> "RunnerAsync.postResponseItem: Error: unexpected token type. jType = " + token.getClass().getSimpleName());
                         return;
                     }
                 }
 
-                ResponseItem responseItem = responseMap.get(token);
-                responseItem.line = line;
-                responseItem.semaphore.release();
+                ResponseItem responseItem = null;
+                try {
+                    responseItem = responseMap.remove(Long.valueOf((String) token));
+                } catch (NumberFormatException e) {
+                    // a token which we did not make, such as the one the server uses when it cannot parse a command
+                }
+                if (responseItem == null) {
+                    log(LogLevel.error, () -> "RunnerAsync.postResponseItem: Error: unknown token: " + token);
+                    return;
+                }
+
+                settle(responseItem, jObject);
+
+                long nanos = System.nanoTime() - responseItem.created;
+                try {
+                    responseItem.future.complete(new Response(checkStatus(jObject)));
+                    metrics.response(responseItem.command, nanos, true);
+                } catch (RunnerException e) {
+                    metrics.response(responseItem.command, nanos, false);
+                    responseItem.future.completeExceptionally(e);
+                }
             } else {
-                log("RunnerAsync.postResponseItem: Error: unexpected response. jType = " + jData.getClass().getSimpleName());
+                log(LogLevel.error, () -> "RunnerAsync.postResponseItem: Error: unexpected response. jType = " + jData.getClass().getSimpleName());
             }
         } catch (Exception e) {
-            log("RunnerAsync.postResponseItem: Error: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            log(LogLevel.error, () -> "RunnerAsync.postResponseItem: Error: " + e.getClass().getSimpleName() + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Complete the request of a response line from one of the servers, which took up length bytes of its stream. Only the primary's
+     * responses are delivered; the standby's are kept until the primary has answered, in case it dies first
+     */
+    void postResponseItem(ServerLink from, String line, int length) {
+        if (journal == null || from == link) {
+            completeResponseLine(line, length);
+            return;
+        }
+
+        long id;
+        try {
+            id = Long.valueOf(new JSONObject(line).optString("token"));
+        } catch (Exception e) {
+            return;
+        }
+        standbyResponse(from, id, () -> completeResponseLine(line, length));
+    }
+
+    private void completeResponseLine(String line, int length) {
+        metrics.received(length);
+        postResponseItem(line);
+    }
+
+    /**
+     * Complete the request of a frame from one of the servers, as postResponseItem does for a line
+     */
+    void postResponseFrame(ServerLink from, int status, long id, byte[] body) {
+        if (journal == null || from == link) {
+            completeResponseFrame(status, id, body);
+            return;
+        }
+        standbyResponse(from, id, () -> completeResponseFrame(status, id, body));
+    }
+
+    private void standbyResponse(ServerLink from, long id, Runnable delivery) {
+        synchronized (failoverLock) {
+            if (from != link) {
+                if (from == standby && responseMap.containsKey(id)) {
+                    standbyResponses.put(id, delivery);
+                }
+                return;
+            }
+        }
+
+        // the standby has been promoted since the response was read
+        delivery.run();
+    }
+
+    /**
+     * Complete the request of a frame from the server. The body is only parsed if the status is a failure, for its message
+     */
+    private void completeResponseFrame(int status, long id, byte[] body) {
+
+        metrics.received(Frame.HeaderSize + body.length);
+
+        ResponseItem responseItem = responseMap.remove(id);
+        if (responseItem == null) {
+            log(LogLevel.error, () -> "RunnerAsync.postResponseFrame: Error: unknown request id: " + id);
+            return;
+        }
+
+        Response response = new Response(body);
+        settle(responseItem, responseItem.mutation ? versionsOf(response) : null);
+
+        metrics.response(responseItem.command, System.nanoTime() - responseItem.created, status == Frame.StatusOk);
+
+        if (status == Frame.StatusOk) {
+            responseItem.future.complete(response);
+            return;
+        }
+
+        try {
+            String message = response.json().optString("message", "unexpected error");
+            responseItem.future.completeExceptionally(new RunnerException("error: " + message));
+        } catch (Exception e) {
+            responseItem.future.completeExceptionally(new RunnerException("error: unreadable response", e));
+        }
+    }
+
+    /**
+     * Release what a request held once its entry has been removed from the response map, with its response if there is one
+     */
+    private void settle(ResponseItem responseItem, JSONObject jObject) {
+        if (responseItem.onResponse != null) {
+            responseItem.onResponse.run();
+        }
+        if (responseItem.mutation) {
+            versions.end(jObject);
+        }
+    }
+
+    private static JSONObject versionsOf(Response response) {
+        try {
+            return response.json();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * The versions of the server's data, as far as the responses so far tell
+     */
+    DataVersions getDataVersions() {
+        return versions;
+    }
+
     // *****************************************************************************
     // * Observers
     // *****************************************************************************
@@ -270,153 +862,664 @@ public class RunnerAsync {
     // * Logging
     // *****************************************************************************
 
+    public boolean attachLogger(RunnerLogger logger) {
+        return appender.attach(logger);
+    }
+
+    public boolean detachLogger(RunnerLogger logger) {
+        return appender.detach(logger);
+    }
+
+    public void setClientLogLevel(LogLevel level) {
+        logLevel = level;
+    }
+
+    /**
+     * Whether a message of this level would go anywhere, which it does not when no logger is attached
+     */
+    public boolean isLoggable(LogLevel level) {
+        return logLevel.includes(level) && appender.hasLoggers();
+    }
+
+    /**
+     * Log a message which is built only if it is loggable
+     */
+    public void log(LogLevel level, Supplier<String> message) {
+        if (isLoggable(level)) {
+            appender.add(message.get());
+        }
+    }
+
+    public void log(LogLevel level, String line) {
+        if (isLoggable(level)) {
+            appender.add(line);
+        }
+    }
+
     public void log(String line) {
+        log(LogLevel.info, line);
+    }
 
-        synchronized (this) {
-            logBuffer.add(line);
+    // *****************************************************************************
+    // * Helpers
+    // *****************************************************************************
+
+    public CompletableFuture<Void> createArray(String field) throws IOException, InterruptedException {
+        return request(createArrayCommand(field), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    public CompletableFuture<Void> createArray(String field, ArrayType type) throws IOException, InterruptedException {
+        return request(createArrayCommand(field, type), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    /**
+     * Create a field kept in a file of the data directory, replacing any dataset of the same name. The values appended to it are written
+     * through to the file, which outlives the server and can be mapped again with restore
+     */
+    public CompletableFuture<Void> createMappedArray(String field, ArrayType type) throws IOException, InterruptedException {
+        if (type == ArrayType.list) {
+            throw new IllegalArgumentException("A mapped array needs a typed ArrayType, not " + type);
         }
+        return request(createMappedArrayCommand(field, type), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
 
-        notifyObservers();
+    /**
+     * Write a field to its file in the data directory, completing with the number of values written
+     */
+    public CompletableFuture<Long> snapshot(String field) throws IOException, InterruptedException {
+        return request(fieldCommand("snapshot", field), null, new ResponseItem()).thenApply(response -> response.json().getLong("count"));
     }
 
-    public List<String> readLog() {
+    /**
+     * Replace a field with the dataset in its file, which is mapped rather than read, completing with the number of values in it
+     */
+    public CompletableFuture<Long> restore(String field) throws IOException, InterruptedException {
+        return request(fieldCommand("restore", field), null, new ResponseItem()).thenApply(response -> response.json().getLong("count"));
+    }
 
-        List<String> temp;
+    public CompletableFuture<Void> extendArray(String field, List<Double> list) throws IOException, InterruptedException {
+        return extendArrayText(field, list);
+    }
 
-        synchronized (this) {
-            temp = logBuffer;
-            logBuffer = new ArrayList<String>();
+    /**
+     * Append the values of the list, refusing with a RunnerException a list too large to be sent in binary as one payload
+     */
+    public CompletableFuture<Void> extendArray(String field, List<Double> list, Transfer transfer)
+            throws RunnerException, IOException, InterruptedException {
+        switch (transfer) {
+        case binary:
+            return extendArrayBinary(field, list);
+        case shared:
+            return extendArrayShared(field, list);
+        default:
+            return extendArrayText(field, list);
         }
+    }
+
+    private CompletableFuture<Void> extendArrayText(String field, List<Double> list) throws IOException, InterruptedException {
+        return request(extendArrayTextCommand(field, list), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    private CompletableFuture<Void> extendArrayBinary(String field, List<Double> list)
+            throws RunnerException, IOException, InterruptedException {
+        byte[] payload = toPayload(list);
+        return request(extendArrayBinaryCommand(field, payload.length), payload, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    private CompletableFuture<Void> extendArrayShared(String field, List<Double> list)
+            throws RunnerException, IOException, InterruptedException {
+
+        // {"command":"extendShared","arguments":["array", "/dev/shm/pyrunner-123.shm", 0, 24]}
+
+        final SharedMemory memory = getSharedMemory();
+
+        int length = payloadLength(list.size());
+        int offset = memory.allocate(length);
+        memory.write(offset, list);
+
+        JSONObject jObject = new JSONObject();
+        jObject.put("command", "extendShared");
+
+        JSONArray jArray = new JSONArray();
+        jArray.put(field);
+        jArray.put(memory.getPath());
+        jArray.put(offset);
+        jArray.put(length);
+        jObject.put("arguments", jArray);
+
+        // The region can only be reused once the server has read it
+        ResponseItem responseItem = new ResponseItem();
+        responseItem.onResponse = new Runnable() {
+            @Override
+            public void run() {
+                memory.release();
+            }
+        };
+        return request(jObject, null, responseItem).thenApply(RunnerAsync::toVoid);
+    }
+
+    // *****************************************************************************
+    // * Primitive extendArray, in binary chunks
+    // *****************************************************************************
+
+    /**
+     * Fills a little-endian chunk with the next values of a source, returning how many bytes it wrote
+     */
+    private interface ChunkSource {
+        int fill(ByteBuffer chunk);
+    }
 
-        return temp;
+    public CompletableFuture<Void> extendArray(String field, double[] values) throws IOException, InterruptedException {
+        return extendArray(field, values, 0, values.length);
     }
 
-    private void notifyObservers() {
-        for (RunnerObserver observer : observers) {
-            observer.notify(Operation.logger);
+    public CompletableFuture<Void> extendArray(String field, double[] values, int offset, int length) throws IOException, InterruptedException {
+        return extendArray(field, DoubleBuffer.wrap(values, offset, length));
+    }
+
+    /**
+     * Append the remaining values of the buffer, which is left with no values remaining
+     */
+    public CompletableFuture<Void> extendArray(String field, final DoubleBuffer values) throws IOException, InterruptedException {
+        return extendArrayChunked(field, ArrayType.float64, new ChunkSource() {
+            @Override
+            public int fill(ByteBuffer bytes) {
+                DoubleBuffer chunk = bytes.asDoubleBuffer();
+                int count = Math.min(chunk.remaining(), values.remaining());
+                DoubleBuffer slice = values.duplicate();
+                slice.limit(slice.position() + count);
+                chunk.put(slice);
+                values.position(values.position() + count);
+                return count * Double.BYTES;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> extendArray(String field, DoubleStream values) throws IOException, InterruptedException {
+        return extendArray(field, values.iterator());
+    }
+
+    public CompletableFuture<Void> extendArray(String field, final PrimitiveIterator.OfDouble values) throws IOException, InterruptedException {
+        return extendArrayChunked(field, ArrayType.float64, new ChunkSource() {
+            @Override
+            public int fill(ByteBuffer bytes) {
+                DoubleBuffer chunk = bytes.asDoubleBuffer();
+                int count = 0;
+                while (chunk.hasRemaining() && values.hasNext()) {
+                    chunk.put(values.nextDouble());
+                    count++;
+                }
+                return count * Double.BYTES;
+            }
+        });
+    }
+
+    /**
+     * Append integer values, to a field created with ArrayType.int64 (or a list)
+     */
+    public CompletableFuture<Void> extendArray(String field, long[] values) throws IOException, InterruptedException {
+        final LongBuffer source = LongBuffer.wrap(values);
+        return extendArrayChunked(field, ArrayType.int64, new ChunkSource() {
+            @Override
+            public int fill(ByteBuffer bytes) {
+                LongBuffer chunk = bytes.asLongBuffer();
+                int count = Math.min(chunk.remaining(), source.remaining());
+                LongBuffer slice = source.duplicate();
+                slice.limit(slice.position() + count);
+                chunk.put(slice);
+                source.position(source.position() + count);
+                return count * Long.BYTES;
+            }
+        });
+    }
+
+    /**
+     * Send the values as a sequence of binary extend commands of at most chunkSize values each, reusing one chunk buffer.
+     * 
+     * Up to chunksInFlight chunks are sent before waiting for the oldest acknowledgement, so this call blocks only when the server falls behind,
+     * and the memory used stays the same however many values there are. The returned future completes when the last chunk has been
+     * acknowledged, or fails with the first failing chunk, in which case the chunks before it have already been appended.
+     */
+    private CompletableFuture<Void> extendArrayChunked(String field, ArrayType type, ChunkSource source) throws IOException, InterruptedException {
+
+        byte[] chunk = new byte[chunkBytes];
+        ByteBuffer bytes = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+
+        ArrayDeque<CompletableFuture<Response>> inFlight = new ArrayDeque<CompletableFuture<Response>>();
+
+        while (true) {
+            bytes.clear();
+            int length = source.fill(bytes);
+            if (length == 0) {
+                break;
+            }
+
+            if (inFlight.size() >= chunksInFlight) {
+                CompletableFuture<Response> oldest = inFlight.poll();
+                try {
+                    oldest.get();
+                } catch (ExecutionException e) {
+                    return oldest.thenApply(RunnerAsync::toVoid);
+                }
+            }
+
+            inFlight.add(request(extendArrayBinaryCommand(field, type, length), chunk, length, new ResponseItem()));
         }
+
+        return CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[inFlight.size()]));
+    }
+
+    private synchronized SharedMemory getSharedMemory() throws IOException {
+        if (sharedMemory == null) {
+            sharedMemory = new SharedMemory();
+        }
+        return sharedMemory;
+    }
+
+    public CompletableFuture<Void> runPythonFunction(String pythonFunction) throws IOException, InterruptedException {
+        return request(runPythonFunctionCommand(pythonFunction), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    public CompletableFuture<Result> getResult() throws IOException, InterruptedException {
+        return getResult(Priority.normal);
+    }
+
+    public CompletableFuture<Result> getResult(Priority priority) throws IOException, InterruptedException {
+        return request(prioritized(getCommand("result"), priority), null, new ResponseItem()).thenApply(RunnerAsync::toResult);
     }
 
     // *****************************************************************************
-    // * Helpers
+    // * Registered functions
     // *****************************************************************************
 
-    public String createArray(String field) throws IOException, InterruptedException {
+    /**
+     * Compile the source once on the server; it must define a function with the given name
+     */
+    public CompletableFuture<FunctionHandle> registerFunction(String name, String source) throws IOException, InterruptedException {
+        JSONObject jObject = simpleCommand("registerFunction");
 
-        // data["array"] = []
+        JSONArray jArray = new JSONArray();
+        jArray.put(name);
+        jArray.put(source);
+        jObject.put("arguments", jArray);
 
-        String python = "data[\"" + field + "\"] = []";
+        return request(jObject, null, new ResponseItem()).thenApply(RunnerAsync::toFunctionHandle);
+    }
 
-        JSONObject jObject = new JSONObject();
-        jObject.put("command", "run");
+    /**
+     * Find a function which is already registered or defined on the server, for example one loaded from a module at startup
+     */
+    public CompletableFuture<FunctionHandle> lookupFunction(String name) throws IOException, InterruptedException {
+        JSONObject jObject = simpleCommand("lookupFunction");
 
         JSONArray jArray = new JSONArray();
-        jArray.put(python);
+        jArray.put(name);
         jObject.put("arguments", jArray);
 
-        String token = makeToken();
-        jObject.put("token", token);
+        return request(jObject, null, new ResponseItem()).thenApply(RunnerAsync::toFunctionHandle);
+    }
 
-        String command = jObject.toString();
-        printWriter.println(command);
-        printWriter.flush();
-        responseMap.put(token, new ResponseItem());
-        return token;
+    /**
+     * Call a registered function, completing with its return value as decoded by org.json (JSONObject.NULL for None)
+     */
+    public CompletableFuture<Object> callFunction(FunctionHandle function, Object... arguments) throws IOException, InterruptedException {
+        return request(callCommand(function, arguments), null, new ResponseItem()).thenApply(response -> response.json().opt("result"));
     }
 
-    public String extendArray(String field, List<Double> list) throws IOException, InterruptedException {
+    /**
+     * Call a registered function which only reads the data, so that, unlike callFunction, the data is not taken to have changed
+     */
+    public CompletableFuture<Object> query(FunctionHandle function, Object... arguments) throws IOException, InterruptedException {
+        return query(Priority.normal, function, arguments);
+    }
 
-        // data["array"].extend( (11,12,13) )
+    /**
+     * A query which the server may answer ahead of the commands sent before it, typically on a worker thread while a long run is busy
+     */
+    public CompletableFuture<Object> query(Priority priority, FunctionHandle function, Object... arguments) throws IOException, InterruptedException {
+        return request(prioritized(queryCommand(function, arguments), priority), null, new ResponseItem())
+                .thenApply(response -> response.json().opt("result"));
+    }
 
-        String python = "data[\"" + field + "\"].extend( (";
-        String sep = "";
-        for (Double value : list) {
-            python = python + sep + value;
-            sep = ", ";
+    static JSONObject callCommand(FunctionHandle function, Object... arguments) {
+        return callCommand("call", function, arguments);
+    }
+
+    static JSONObject queryCommand(FunctionHandle function, Object... arguments) {
+        return callCommand("query", function, arguments);
+    }
+
+    private static JSONObject callCommand(String command, FunctionHandle function, Object... arguments) {
+
+        // {"command":"call","arguments":[3, 1.5, "abc"]}
+
+        JSONObject jObject = simpleCommand(command);
+
+        JSONArray jArray = new JSONArray();
+        jArray.put(function.getHandle());
+        for (Object argument : arguments) {
+            jArray.put(JSONObject.wrap(argument));
         }
-        python = python + ") )";
+        jObject.put("arguments", jArray);
+        return jObject;
+    }
 
-        JSONObject jObject = new JSONObject();
-        jObject.put("command", "run");
+    // *****************************************************************************
+    // * Aggregates
+    // *****************************************************************************
+
+    /**
+     * Have the server keep statistics of a field up to date as it is extended, in addition to any already declared. The field must only
+     * grow at the end; if it is replaced or shrinks, the statistics are computed again from the beginning
+     */
+    public CompletableFuture<Void> aggregate(String field, Collection<Statistic> statistics) throws IOException, InterruptedException {
 
+        // {"command":"aggregate","arguments":["array", ["count", "sum"]]}
+
+        JSONArray jStatistics = new JSONArray();
+        for (Statistic statistic : statistics) {
+            jStatistics.put(statistic.name());
+        }
+
+        JSONObject jObject = simpleCommand("aggregate");
         JSONArray jArray = new JSONArray();
-        jArray.put(python);
+        jArray.put(field);
+        jArray.put(jStatistics);
+        jObject.put("arguments", jArray);
+        return request(jObject, null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    /**
+     * Have the server keep a reduction of a field up to date as it is extended. The function is called as f(a, b), must be associative, and
+     * initial must be its identity
+     */
+    public CompletableFuture<Void> addReducer(String field, String name, FunctionHandle function, Object initial) throws IOException, InterruptedException {
+
+        // {"command":"addReducer","arguments":["array", "product", 3, 1.0]}
+
+        JSONObject jObject = simpleCommand("addReducer");
+        JSONArray jArray = new JSONArray();
+        jArray.put(field);
+        jArray.put(name);
+        jArray.put(function.getHandle());
+        jArray.put(JSONObject.wrap(initial));
         jObject.put("arguments", jArray);
+        return request(jObject, null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
 
-        String token = makeToken();
-        jObject.put("token", token);
+    public CompletableFuture<Aggregates> getAggregates(String field) throws IOException, InterruptedException {
+        return getAggregates(field, Priority.normal);
+    }
 
-        String command = jObject.toString();
-        printWriter.println(command);
-        printWriter.flush();
-        responseMap.put(token, new ResponseItem());
-        return token;
+    public CompletableFuture<Aggregates> getAggregates(String field, Priority priority) throws IOException, InterruptedException {
+        return request(prioritized(getAggregatesCommand(field), priority), null, new ResponseItem())
+                .thenApply(response -> Aggregates.fromJson(response.json()));
     }
 
-    public String runPythonFunction(String pythonFunction) throws IOException, InterruptedException {
+    static JSONObject getAggregatesCommand(String field) {
+        return fieldCommand("getAggregates", field);
+    }
 
-        // foobar()
+    private static FunctionHandle toFunctionHandle(Response response) {
+        JSONObject jObject = response.json();
+        return new FunctionHandle(jObject.getString("name"), jObject.getInt("handle"));
+    }
+
+    // *****************************************************************************
+    // * Array download
+    // *****************************************************************************
+
+    public CompletableFuture<double[]> getArray(String field) throws IOException, InterruptedException {
+        return getArray(field, 0, -1);
+    }
+
+    /**
+     * Fetch up to length values of the array starting at offset; a negative length means to the end of the array
+     */
+    public CompletableFuture<double[]> getArray(String field, int offset, int length) throws IOException, InterruptedException {
+        return getArray(field, offset, length, Priority.normal);
+    }
+
+    public CompletableFuture<double[]> getArray(String field, int offset, int length, Priority priority) throws IOException, InterruptedException {
+        return request(prioritized(getArrayCommand(field, offset, length), priority), null, new ResponseItem()).thenApply(response -> {
+            DoubleBuffer values = decodeArray(response);
+            double[] array = new double[values.remaining()];
+            values.get(array);
+            return array;
+        });
+    }
+
+    /**
+     * Fill the remaining space of the target buffer with the values of the array starting at offset, completing with the number of values
+     * copied, which is less than requested if the array ends first
+     */
+    public CompletableFuture<Integer> getArray(String field, int offset, final DoubleBuffer target) throws IOException, InterruptedException {
+        return request(getArrayCommand(field, offset, target.remaining()), null, new ResponseItem()).thenApply(response -> {
+            DoubleBuffer values = decodeArray(response);
+            int count = values.remaining();
+            target.put(values);
+            return count;
+        });
+    }
 
-        String python = pythonFunction + "()";
+    static JSONObject getArrayCommand(String field, int offset, int length) {
+
+        // {"command":"getArray","arguments":["array", 0, -1]}
+
+        JSONObject jObject = simpleCommand("getArray");
+
+        JSONArray jArray = new JSONArray();
+        jArray.put(field);
+        jArray.put(offset);
+        jArray.put(length);
+        jObject.put("arguments", jArray);
+        return jObject;
+    }
+
+    /**
+     * In the framed protocol the values follow the json as raw little-endian doubles
+     */
+    static DoubleBuffer decodeArray(Response response) {
+        ByteBuffer binary = response.binary();
+        if (binary != null) {
+            return binary.asDoubleBuffer();
+        }
+        return decodeArray(response.json());
+    }
+
+    /**
+     * The "data" field holds the values as base64 encoded little-endian doubles
+     */
+    static DoubleBuffer decodeArray(JSONObject jObject) {
+        byte[] bytes = Base64.getDecoder().decode(jObject.getString("data"));
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    public CompletableFuture<Void> ping() throws IOException, InterruptedException {
+        return request(simpleCommand("ping"), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    /**
+     * Change how much the server logs, without restarting it
+     */
+    public CompletableFuture<Void> setLogLevel(LogLevel level) throws IOException, InterruptedException {
+        JSONObject jObject = simpleCommand("loglevel");
+
+        JSONArray jArray = new JSONArray();
+        jArray.put(level.name());
+        jObject.put("arguments", jArray);
+
+        return request(jObject, null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
 
+    public CompletableFuture<Void> close() throws IOException, InterruptedException {
+        closing = true;
+        ServerLink spare = standby;
+        if (spare != null) {
+            spare.destroy();
+        }
+        return request(simpleCommand("quit"), null, new ResponseItem()).thenApply(RunnerAsync::toVoid);
+    }
+
+    /**
+     * Start building a batch of operations which are sent to the server in one message
+     */
+    public Batch batch() {
+        return new Batch(this);
+    }
+
+    CompletableFuture<Response> request(Batch batch) throws IOException {
+        return request(batch.toCommand(), batch.toPayload(), new ResponseItem());
+    }
+
+    // *****************************************************************************
+    // * Commands
+    // *****************************************************************************
+
+    static JSONObject simpleCommand(String name) {
         JSONObject jObject = new JSONObject();
-        jObject.put("command", "run");
+        jObject.put("command", name);
+        return jObject;
+    }
+
+    /**
+     * Mark a read with where the server should run it. The server runs mutations in order whatever they are marked with
+     */
+    static JSONObject prioritized(JSONObject jObject, Priority priority) {
+        if (priority != Priority.normal) {
+            jObject.put("priority", priority.name());
+        }
+        return jObject;
+    }
+
+    static JSONObject runCommand(String python) {
+        JSONObject jObject = simpleCommand("run");
 
         JSONArray jArray = new JSONArray();
         jArray.put(python);
         jObject.put("arguments", jArray);
+        return jObject;
+    }
 
-        String token = makeToken();
-        jObject.put("token", token);
+    static JSONObject createArrayCommand(String field) {
 
-        String command = jObject.toString();
-        printWriter.println(command);
-        printWriter.flush();
-        responseMap.put(token, new ResponseItem());
-        return token;
+        // data["array"] = []
+
+        return runCommand("data[\"" + field + "\"] = []");
     }
 
-    public String getResult() throws IOException, InterruptedException {
+    static JSONObject createMappedArrayCommand(String field, ArrayType type) {
 
-        JSONObject jObject = new JSONObject();
-        jObject.put("command", "get");
+        // data["array"] = newMappedArray("array", 'float64')
+
+        return runCommand("data[\"" + field + "\"] = newMappedArray(\"" + field + "\", '" + type + "')");
+    }
+
+    static JSONObject fieldCommand(String command, String field) {
+
+        // {"command":"snapshot","arguments":["array"]}
 
+        JSONObject jObject = simpleCommand(command);
         JSONArray jArray = new JSONArray();
-        jArray.put("result");
+        jArray.put(field);
         jObject.put("arguments", jArray);
+        return jObject;
+    }
 
-        String token = makeToken();
-        jObject.put("token", token);
+    static JSONObject createArrayCommand(String field, ArrayType type) {
 
-        String command = jObject.toString();
-        printWriter.println(command);
-        printWriter.flush();
-        responseMap.put(token, new ResponseItem());
-        return token;
+        // data["array"] = newArray('float64')
+
+        return runCommand("data[\"" + field + "\"] = newArray('" + type + "')");
     }
 
-    public String close() throws IOException, InterruptedException {
+    static JSONObject extendArrayTextCommand(String field, List<Double> list) {
 
-        JSONObject jObject = new JSONObject();
-        jObject.put("command", "quit");
+        // data["array"].extend( (11, 12, 13, ) )
+
+        StringBuilder python = new StringBuilder();
+        python.append("data[\"").append(field).append("\"].extend( (");
+        for (Double value : list) {
+            python.append(value).append(", ");
+        }
+        python.append(") )");
+
+        return runCommand(python.toString());
+    }
+
+    static JSONObject extendArrayBinaryCommand(String field, int length) {
+        return extendArrayBinaryCommand(field, ArrayType.float64, length);
+    }
+
+    static JSONObject extendArrayBinaryCommand(String field, ArrayType type, int length) {
+
+        // {"command":"extend","arguments":["array"],"length":24} followed by 24 bytes of doubles
+        // {"command":"extend","arguments":["array","int64"],"length":24} followed by 24 bytes of 64 bit integers
+
+        JSONObject jObject = simpleCommand("extend");
+
+        JSONArray jArray = new JSONArray();
+        jArray.put(field);
+        if (type != ArrayType.float64) {
+            jArray.put(type.name());
+        }
+        jObject.put("arguments", jArray);
+        jObject.put("length", length);
+        return jObject;
+    }
+
+    static JSONObject runPythonFunctionCommand(String pythonFunction) {
+
+        // foobar()
+
+        return runCommand(pythonFunction + "()");
+    }
+
+    static JSONObject getCommand(String field) {
+        JSONObject jObject = simpleCommand("get");
 
-        String token = makeToken();
-        jObject.put("token", token);
+        JSONArray jArray = new JSONArray();
+        jArray.put(field);
+        jObject.put("arguments", jArray);
+        return jObject;
+    }
 
-        String command = jObject.toString();
-        printWriter.println(command);
-        printWriter.flush();
-        responseMap.put(token, new ResponseItem());
-        return token;
+    /**
+     * The number of bytes taken by count doubles, which must fit in one array
+     */
+    static int payloadLength(int count) throws RunnerException {
+        try {
+            return Math.multiplyExact(count, Double.BYTES);
+        } catch (ArithmeticException e) {
+            throw new RunnerException("Too many values for one payload: " + count);
+        }
+    }
+
+    static byte[] toPayload(List<Double> list) throws RunnerException {
+        ByteBuffer buffer = ByteBuffer.allocate(payloadLength(list.size())).order(ByteOrder.LITTLE_ENDIAN);
+        for (Double value : list) {
+            buffer.putDouble(value);
+        }
+        return buffer.array();
     }
 
     // *****************************************************************************
     // * HandleResponse helpers
     // *****************************************************************************
 
-    public Result handleResponseGetResult(JSONObject jObject) throws RunnerException {
+    private static Void toVoid(Response response) {
+        return null;
+    }
+
+    private static Result toResult(Response response) {
+        try {
+            return handleResponseGetResult(response.json());
+        } catch (RunnerException e) {
+            throw new CompletionException(e);
+        }
+    }
 
-        log("RunnerAsync.handleResponseGetResult: entry");
+    public static Result handleResponseGetResult(JSONObject jObject) throws RunnerException {
 
         if (!jObject.has("result")) {
             throw new RunnerException("The \"result\" field is missing");
@@ -442,17 +1545,42 @@ public class RunnerAsync {
             throw new RunnerException("Error: The \"result.total\" field is missing");
 
         jData = jResult.get("total");
-        if (!(jData instanceof Double))
+        if (!(jData instanceof Number))
             throw new RunnerException("Error: Unexpected result.total type. type = " + jData.getClass().getSimpleName());
 
-        Double total = (Double) jData;
-
-        log("RunnerAsync.handleResponseGetResult: exit");
+        // org.json returns decimals as BigDecimal, and a whole-number total as Integer
+        Double total = ((Number) jData).doubleValue();
 
         return new Result(count, total);
     }
 
-    public void HandleResponseClose() {
-        process.destroy();
+    public boolean isAlive() {
+        return link.isAlive();
+    }
+
+    /**
+     * Whether the server process, and its standby's, have exited, which may be a little after their streams have ended
+     */
+    boolean hasExited() {
+        ServerLink spare = standby;
+        return !link.getProcess().isAlive() && (spare == null || !spare.getProcess().isAlive());
+    }
+
+    public void HandleResponseClose() throws IOException {
+        closing = true;
+        sweeper.cancel(false);
+        link.destroy();
+        ServerLink spare = standby;
+        if (spare != null) {
+            spare.destroy();
+        }
+        RunnerMetrics.unregister(metricsName);
+
+        synchronized (this) {
+            if (sharedMemory != null) {
+                sharedMemory.close();
+                sharedMemory = null;
+            }
+        }
     }
 }
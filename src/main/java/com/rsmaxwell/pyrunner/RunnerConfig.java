@@ -0,0 +1,218 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options used when a RunnerAsync starts its python server
+ */
+public class RunnerConfig {
+
+    private LogLevel logLevel = LogLevel.trace;
+    private int chunkSize = 64 * 1024;
+    private int chunksInFlight = 4;
+    private List<String> modules = new ArrayList<String>();
+    private Protocol protocol = Protocol.json;
+    private Zygote zygote;
+    private StreamReactor reactor;
+    private LogLevel clientLogLevel = LogLevel.info;
+    private int logCapacity = 10000;
+    private int cacheSize;
+    private long cacheTtl;
+    private String dataDirectory;
+    private boolean standby;
+    private long journalLimit = 256L * 1024 * 1024;
+    private int workerThreads = 2;
+    private long switchInterval = 500;
+
+    /**
+     * How much the python server logs. The Java side has a level of its own, the client log level
+     */
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * The number of values sent in each command when a primitive array or stream is appended, at least 1
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * The number of chunks sent ahead of their acknowledgements, at least 1
+     */
+    public int getChunksInFlight() {
+        return chunksInFlight;
+    }
+
+    public void setChunksInFlight(int chunksInFlight) {
+        if (chunksInFlight < 1) {
+            throw new IllegalArgumentException("Invalid number of chunks in flight: " + chunksInFlight);
+        }
+        this.chunksInFlight = chunksInFlight;
+    }
+
+    /**
+     * Python modules (a file ending in .py, or a module name) loaded when the server starts, whose public functions are registered
+     */
+    public List<String> getModules() {
+        return modules;
+    }
+
+    public void addModule(String module) {
+        modules.add(module);
+    }
+
+    /**
+     * The json protocol is the default, being the easier one to debug
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * When set, the server is forked from this zygote instead of being started as a new process
+     */
+    public Zygote getZygote() {
+        return zygote;
+    }
+
+    public void setZygote(Zygote zygote) {
+        this.zygote = zygote;
+    }
+
+    /**
+     * When set, the server's streams are read by this shared reactor instead of by two threads of the Runner's own
+     */
+    public StreamReactor getReactor() {
+        return reactor;
+    }
+
+    public void setReactor(StreamReactor reactor) {
+        this.reactor = reactor;
+    }
+
+    /**
+     * How much the Java side logs to the attached RunnerLoggers. The server's own output is logged at info
+     */
+    public LogLevel getClientLogLevel() {
+        return clientLogLevel;
+    }
+
+    public void setClientLogLevel(LogLevel clientLogLevel) {
+        this.clientLogLevel = clientLogLevel;
+    }
+
+    /**
+     * The number of log lines which may wait for delivery to the loggers before more are dropped
+     */
+    public int getLogCapacity() {
+        return logCapacity;
+    }
+
+    public void setLogCapacity(int logCapacity) {
+        this.logCapacity = logCapacity;
+    }
+
+    /**
+     * The number of results a Runner keeps from getResult and query to answer identical reads of unchanged data. Zero turns the cache off
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * The number of milliseconds after which a cached result is read again even if the data has not changed. Zero means never
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * The directory in which the server keeps persistent datasets, one file per field. Servers running at the same time each need their
+     * own. Null (the default) means the server has none
+     */
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public void setDataDirectory(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    /**
+     * Whether a second server is kept warm and in step, by being sent every mutation, to take over if the first one dies. The mutations are
+     * kept, up to the journal limit, so that a new standby can be brought up in turn. Mutations must give the same results when repeated, and
+     * there cannot be a data directory
+     */
+    public boolean isStandby() {
+        return standby;
+    }
+
+    public void setStandby(boolean standby) {
+        this.standby = standby;
+    }
+
+    /**
+     * The number of bytes of mutations kept for bringing up a standby. Beyond it they are dropped, and once the standby has taken over no
+     * other is started
+     */
+    public long getJournalLimit() {
+        return journalLimit;
+    }
+
+    public void setJournalLimit(long journalLimit) {
+        this.journalLimit = journalLimit;
+    }
+
+    /**
+     * The number of threads on which the server runs background reads. Zero runs them in order with everything else
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * The interpreter's switch interval in the server, in microseconds: how long a thread holding the interpreter lock runs before it is
+     * asked to let go of it. A short interval bounds how long a fast command waits while a run is busy, but it applies to all the python
+     * code of the server, which switches threads more often. Zero leaves the interpreter's own interval, 5 ms by default
+     */
+    public long getSwitchInterval() {
+        return switchInterval;
+    }
+
+    public void setSwitchInterval(long switchInterval) {
+        if (switchInterval < 0) {
+            throw new IllegalArgumentException("Invalid switch interval: " + switchInterval);
+        }
+        this.switchInterval = switchInterval;
+    }
+}
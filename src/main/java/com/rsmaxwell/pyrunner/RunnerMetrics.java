@@ -0,0 +1,139 @@
+package com.rsmaxwell.pyrunner;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * The counters of one RunnerAsync. Recording only updates counters which already exist, so it allocates nothing and can be left on.
+ * 
+ * Commands are identified by their opcode in the framed protocol, whichever protocol is in use
+ */
+public class RunnerMetrics implements RunnerMetricsMXBean {
+
+    static final String domain = "com.rsmaxwell.pyrunner";
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final RunnerAsync asyncClient;
+    private final LatencyHistogram[] latencies;
+    private final LongAdder[] errors;
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    RunnerMetrics(RunnerAsync asyncClient) {
+        this.asyncClient = asyncClient;
+
+        int size = Frame.opcodeCount();
+        latencies = new LatencyHistogram[size];
+        errors = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    void response(int opcode, long nanos, boolean ok) {
+        latencies[opcode].record(nanos);
+        if (!ok) {
+            errors[opcode].increment();
+        }
+    }
+
+    void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void failover() {
+        failovers.increment();
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, CommandStatistics> commands = new LinkedHashMap<String, CommandStatistics>();
+        for (int i = 0; i < latencies.length; i++) {
+            long[] buckets = new long[LatencyHistogram.Buckets];
+            long total = latencies[i].addTo(buckets);
+            CommandStatistics statistics = new CommandStatistics(Frame.command(i), errors[i].sum(), total, latencies[i].getMax(), buckets);
+            if (statistics.getCount() > 0 || statistics.getErrors() > 0) {
+                commands.put(statistics.getCommand(), statistics);
+            }
+        }
+        return new MetricsSnapshot(asyncClient.getPendingCount(), bytesSent.sum(), bytesReceived.sum(), failovers.sum(), commands);
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return asyncClient.getPendingCount();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return snapshot().getRequestCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0;
+        for (LongAdder adder : errors) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getFailoverCount() {
+        return failovers.sum();
+    }
+
+    @Override
+    public List<CommandStatistics> getCommands() {
+        return snapshot().getCommands();
+    }
+
+    // *****************************************************************************
+    // * JMX
+    // *****************************************************************************
+
+    /**
+     * Register a bean with the platform MBean server as com.rsmaxwell.pyrunner:type=[type],id=[n], returning null if that fails
+     */
+    static ObjectName register(Object bean, String type) {
+        try {
+            ObjectName name = new ObjectName(domain + ":type=" + type + ",id=" + nextId.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            return name;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.List;
+
+/**
+ * The metrics of a Runner, or of all the Runners of a pool, as seen through JMX
+ */
+public interface RunnerMetricsMXBean {
+
+    /**
+     * Requests which have been sent and not yet answered
+     */
+    int getPendingRequests();
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * How many times a standby has taken over from a server which died
+     */
+    long getFailoverCount();
+
+    /**
+     * The commands which have been used, with their latencies
+     */
+    List<CommandStatistics> getCommands();
+}
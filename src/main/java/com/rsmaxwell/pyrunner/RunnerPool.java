@@ -0,0 +1,404 @@
+package com.rsmaxwell.pyrunner;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ObjectName;
+
+/**
+ * A pool of warm python servers.
+ *
+ * At least minSize Runners are kept started, and at most maxSize are started at once, whether idle or leased. Idle Runners are reused
+ * most-recently-used first, are health checked before being leased, and are closed once they have been idle for longer than idleTimeout
+ * (down to minSize).
+ *
+ * Each started Runner holds a permit from the time it is started until it is closed, so borrowing, replacing a broken Runner and topping
+ * the pool back up all count against the same maxSize.
+ */
+public class RunnerPool implements AutoCloseable, RunnerPoolMXBean {
+
+    private static class IdleRunner {
+
+        final Runner runner;
+        final long releasedAt;
+
+        IdleRunner(Runner runner) {
+            this.runner = runner;
+            this.releasedAt = System.nanoTime();
+        }
+    }
+
+    private static final long healthCheckTimeout = 5000;
+    private static final long borrowRetryNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long exitPollNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RunnerConfig config;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long borrowTimeoutMillis;
+
+    private final LinkedBlockingDeque<IdleRunner> idle;
+    private final Set<Runner> leased;
+    private final Semaphore permits;
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    private final AtomicLong restarts = new AtomicLong();
+    private MetricsSnapshot retired = MetricsSnapshot.empty();
+    private final ObjectName metricsName;
+
+    public RunnerPool(int minSize, int maxSize, long idleTimeoutMillis, long borrowTimeoutMillis) throws Exception {
+        this(new RunnerConfig(), minSize, maxSize, idleTimeoutMillis, borrowTimeoutMillis);
+    }
+
+    public RunnerPool(RunnerConfig config, int minSize, int maxSize, long idleTimeoutMillis, long borrowTimeoutMillis) throws Exception {
+
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new RunnerException("Invalid pool size: min = " + minSize + ", max = " + maxSize);
+        }
+
+        this.config = config;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+
+        idle = new LinkedBlockingDeque<IdleRunner>();
+        leased = ConcurrentHashMap.newKeySet();
+        permits = new Semaphore(maxSize, true);
+
+        // *************************************************************************
+        // * Pre-start the warm Runners
+        // *************************************************************************
+        try {
+            for (int i = 0; i < minSize; i++) {
+                permits.acquire();
+                idle.offerFirst(new IdleRunner(start()));
+            }
+        } catch (Exception e) {
+            IdleRunner entry;
+            while ((entry = idle.pollFirst()) != null) {
+                retire(entry.runner);
+            }
+            throw e;
+        }
+
+        // *************************************************************************
+        // * Evict idle Runners and top the pool back up to minSize
+        // *************************************************************************
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, RunnerPool.class.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long period = Math.max(1, Math.min(idleTimeoutMillis, 1000));
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        metricsName = RunnerMetrics.register(this, "RunnerPool");
+    }
+
+    @Override
+    public int getMinSize() {
+        return minSize;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public int getLeasedCount() {
+        return leased.size();
+    }
+
+    // *****************************************************************************
+    // * Metrics
+    // *****************************************************************************
+
+    /**
+     * The sum of the metrics of the idle and leased Runners, and of those which have been closed
+     */
+    public MetricsSnapshot getMetrics() {
+        MetricsSnapshot sum;
+        synchronized (this) {
+            sum = retired;
+        }
+        for (IdleRunner entry : idle) {
+            sum = sum.plus(entry.runner.asyncClient.getMetrics().snapshot());
+        }
+        for (Runner runner : leased) {
+            sum = sum.plus(runner.asyncClient.getMetrics().snapshot());
+        }
+        return sum;
+    }
+
+    @Override
+    public long getRestartCount() {
+        return restarts.get();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return getMetrics().getPendingRequests();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return getMetrics().getRequestCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return getMetrics().getErrorCount();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return getMetrics().getBytesSent();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return getMetrics().getBytesReceived();
+    }
+
+    @Override
+    public long getFailoverCount() {
+        return getMetrics().getFailoverCount();
+    }
+
+    @Override
+    public List<CommandStatistics> getCommands() {
+        return getMetrics().getCommands();
+    }
+
+    // *****************************************************************************
+    // * Lease / Return
+    // *****************************************************************************
+    public Runner borrow() throws RunnerException, InterruptedException {
+        return borrow(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Runner borrow(long timeout, TimeUnit unit) throws RunnerException, InterruptedException {
+
+        if (closed) {
+            throw new RunnerException("The pool is closed");
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            IdleRunner entry = idle.pollFirst();
+            if (entry == null && permits.tryAcquire()) {
+                Runner runner = start();
+                leased.add(runner);
+                return runner;
+            }
+
+            // A released Runner goes back to the idle deque, while a closed one gives back its permit, so wait for either
+            if (entry == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new RunnerException("Timed out waiting for a Runner after " + unit.toMillis(timeout) + " ms");
+                }
+                entry = idle.pollFirst(Math.min(remaining, borrowRetryNanos), TimeUnit.NANOSECONDS);
+                if (entry == null) {
+                    continue;
+                }
+            }
+
+            if (isHealthy(entry.runner)) {
+                leased.add(entry.runner);
+                return entry.runner;
+            }
+            restarts.incrementAndGet();
+            retire(entry.runner);
+        }
+    }
+
+    /**
+     * Return a healthy Runner to the pool
+     */
+    public void release(Runner runner) {
+        if (!leased.remove(runner)) {
+            return;
+        }
+
+        if (closed) {
+            retire(runner);
+        } else {
+            offer(new IdleRunner(runner), true);
+        }
+    }
+
+    /**
+     * Return a broken Runner to the pool, which closes it rather than leasing it again
+     */
+    public void invalidate(Runner runner) {
+        if (!leased.remove(runner)) {
+            return;
+        }
+
+        restarts.incrementAndGet();
+        retire(runner);
+    }
+
+    // *****************************************************************************
+    // * Maintenance
+    // *****************************************************************************
+    private boolean isHealthy(Runner runner) {
+        if (!runner.isAlive()) {
+            return false;
+        }
+        try {
+            runner.ping(healthCheckTimeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start a Runner for a permit which has already been acquired, giving the permit back if it cannot be started
+     */
+    private Runner start() throws RunnerException {
+        boolean started = false;
+        try {
+            Runner runner = new Runner(config);
+            started = true;
+            return runner;
+        } catch (RunnerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RunnerException("Could not start a Runner", e);
+        } finally {
+            if (!started) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Close a Runner and give back its permit once its process has gone, so that its replacement is not started alongside it
+     */
+    private void retire(Runner runner) {
+        destroy(runner);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(healthCheckTimeout);
+        while (!runner.asyncClient.hasExited() && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(exitPollNanos);
+        }
+        permits.release();
+    }
+
+    private void destroy(Runner runner) {
+        try {
+            if (runner.isAlive()) {
+                Runner.waitFor(RunnerAsync.withTimeout(runner.asyncClient.close(), healthCheckTimeout, TimeUnit.MILLISECONDS));
+            }
+        } catch (Exception e) {
+            // the process is going away anyway
+        }
+
+        try {
+            runner.asyncClient.HandleResponseClose();
+        } catch (Exception e) {
+            // the process is going away anyway
+        }
+
+        MetricsSnapshot metrics = runner.asyncClient.getMetrics().snapshot().closed();
+        synchronized (this) {
+            retired = retired.plus(metrics);
+        }
+    }
+
+    private void maintain() {
+
+        if (closed) {
+            return;
+        }
+
+        // The least recently used Runners are at the end of the deque
+        long now = System.nanoTime();
+        Iterator<IdleRunner> iterator = idle.descendingIterator();
+        while (iterator.hasNext()) {
+            IdleRunner entry = iterator.next();
+            if (started() <= minSize) {
+                break;
+            }
+            if (now - entry.releasedAt < idleTimeoutNanos) {
+                break;
+            }
+            if (idle.removeFirstOccurrence(entry)) {
+                retire(entry.runner);
+            }
+        }
+
+        while (!closed && started() < minSize && permits.tryAcquire()) {
+            try {
+                offer(new IdleRunner(start()), false);
+            } catch (RunnerException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add a Runner to the idle deque, at the front if it is the most recently used. The pool may have been closed while the Runner was
+     * being started or returned, after close has emptied the deque, so it is checked again once the Runner is in the deque, and whichever
+     * of the two takes the Runner out closes it
+     */
+    private void offer(IdleRunner entry, boolean first) {
+        if (first) {
+            idle.offerFirst(entry);
+        } else {
+            idle.offerLast(entry);
+        }
+        if (closed && idle.removeFirstOccurrence(entry)) {
+            retire(entry.runner);
+        }
+    }
+
+    /**
+     * The number of Runners which hold a permit: those idle, leased or being started
+     */
+    private int started() {
+        return maxSize - permits.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        RunnerMetrics.unregister(metricsName);
+
+        IdleRunner entry;
+        while ((entry = idle.pollFirst()) != null) {
+            retire(entry.runner);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * A pool as seen through JMX: its size, and the metrics of all the Runners it has had, including those it has closed
+ */
+public interface RunnerPoolMXBean extends RunnerMetricsMXBean {
+
+    int getMinSize();
+
+    int getMaxSize();
+
+    int getIdleCount();
+
+    int getLeasedCount();
+
+    /**
+     * The Runners which were closed because they failed a health check or were invalidated, and so had to be replaced
+     */
+    long getRestartCount();
+}
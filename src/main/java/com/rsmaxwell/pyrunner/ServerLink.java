@@ -0,0 +1,194 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+
+import com.rsmaxwell.pyrunner.StreamReader.Operation;
+
+/**
+ * A python server process and its streams, as used by a RunnerAsync: its primary server, or its standby.
+ *
+ * The server's log is passed to the client's log, and its responses to the client with the link they came from. The client is told once
+ * when the response stream ends, which is when the process has died, or has quit, or when it has lost its place in the stream, in which
+ * case the process is killed.
+ */
+class ServerLink {
+
+    private static final long helloTimeout = 10000;
+
+    private final RunnerAsync client;
+    private final ServerProcess process;
+    private final Protocol protocol;
+    private final OutputStream stdin;
+    private final StreamReader outputReader;
+    private final StreamReader errorReader;
+    private final CompletableFuture<Void> hello = new CompletableFuture<Void>();
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private StreamReactor.Worker reactorWorker;
+
+    ServerLink(final RunnerAsync client, ServerProcess process, RunnerConfig config, List<RunnerObserver> observers) throws RunnerException {
+
+        this.client = client;
+        this.process = process;
+        this.protocol = config.getProtocol();
+
+        outputReader = new StreamReader(process.getInputStream(), Operation.stdout, observers, new LineDecoder(new LineDecoder.LineHandler() {
+            @Override
+            public void line(String line, int length) {
+                client.log(LogLevel.info, () -> "python: " + line);
+            }
+        }));
+
+        // The responses are decoded and their requests completed on the reader thread, without going through the observers. In the
+        // framed protocol the server's first frame says hello
+        if (protocol == Protocol.framed) {
+            errorReader = new StreamReader(process.getErrorStream(), Operation.stderr, observers, new FrameDecoder(new FrameDecoder.FrameHandler() {
+                @Override
+                public void frame(int opcode, int status, long id, byte[] body) {
+                    if (id == Frame.Hello) {
+                        hello.complete(null);
+                    } else {
+                        client.postResponseFrame(ServerLink.this, status, id, body);
+                    }
+                }
+
+                // The stream has lost its place, so nothing more can be answered on it
+                @Override
+                public void error(String message) {
+                    client.log(LogLevel.error, () -> "RunnerAsync.errorReader: Error: " + message);
+                    process.destroy();
+                    end();
+                }
+            }));
+        } else {
+            errorReader = new StreamReader(process.getErrorStream(), Operation.stderr, observers, new LineDecoder(new LineDecoder.LineHandler() {
+                @Override
+                public void line(String line, int length) {
+                    client.postResponseItem(ServerLink.this, line, length);
+                }
+            }));
+        }
+
+        errorReader.onEnd(this::end);
+
+        if (config.getReactor() != null) {
+            config.getReactor().register(process.getInputStream(), outputReader, process, null);
+            reactorWorker = config.getReactor().register(process.getErrorStream(), errorReader, process, client);
+        } else {
+            outputReader.start();
+            errorReader.start();
+        }
+
+        stdin = new BufferedOutputStream(process.getOutputStream());
+
+        if (protocol == Protocol.framed) {
+            try {
+                hello.get(helloTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException | InterruptedException e) {
+                process.destroy();
+                throw new RunnerException("The server did not start the framed protocol (version " + Frame.Version + ")", e);
+            }
+        }
+    }
+
+    ServerProcess getProcess() {
+        return process;
+    }
+
+    /**
+     * Fail or hand over the requests sent to this server, once its responses have ended or can no longer be read
+     */
+    private void end() {
+        if (ended.compareAndSet(false, true)) {
+            hello.completeExceptionally(new RunnerException("The server exited"));
+            client.linkEnded(this);
+        }
+    }
+
+    /**
+     * Whether the response stream has ended, after which nothing more will be answered
+     */
+    boolean hasEnded() {
+        return ended.get();
+    }
+
+    boolean isAlive() {
+        return !ended.get() && process.isAlive();
+    }
+
+    /**
+     * Send a command with the given request id, returning the number of bytes written. The command is changed in the process, so it cannot
+     * be sent again
+     */
+    int send(long id, JSONObject jObject, byte[] payload, int length) throws IOException {
+        int count;
+        if (protocol == Protocol.framed) {
+            count = sendFrame(id, jObject, payload, length);
+        } else {
+            jObject.put("token", Long.toString(id));
+            count = send(jObject.toString(), payload, length);
+        }
+
+        if (reactorWorker != null) {
+            reactorWorker.wake();
+        }
+        return count;
+    }
+
+    /**
+     * Write a command line to the server, optionally followed by a binary payload whose size has been given in the "length" field of the command
+     */
+    private int send(String command, byte[] payload, int length) throws IOException {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            stdin.write(bytes);
+            stdin.write(RunnerAsync.LineFeed);
+            if (payload != null) {
+                stdin.write(payload, 0, length);
+            }
+            stdin.flush();
+        }
+        return bytes.length + 1 + ((payload == null) ? 0 : length);
+    }
+
+    /**
+     * Write a command as a frame. The command name becomes the opcode, its priority goes in the header, and the json part holds whatever else
+     * the command has, typically only its arguments
+     */
+    private int sendFrame(long id, JSONObject jObject, byte[] payload, int length) throws IOException {
+        int opcode = Frame.opcode((String) jObject.remove("command"));
+        Object priority = jObject.remove("priority");
+        jObject.remove("length");
+
+        byte[] json = (jObject.length() == 0) ? new byte[0] : jObject.toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(Frame.HeaderSize + Frame.JsonLengthSize);
+        Frame.putHeader(header, opcode, (priority == null) ? Priority.normal : Priority.valueOf((String) priority), id, json.length,
+                (payload == null) ? 0 : length);
+
+        synchronized (this) {
+            stdin.write(header.array());
+            stdin.write(json);
+            if (payload != null) {
+                stdin.write(payload, 0, length);
+            }
+            stdin.flush();
+        }
+        return header.capacity() + json.length + ((payload == null) ? 0 : length);
+    }
+
+    void destroy() {
+        process.destroy();
+    }
+}
@@ -0,0 +1,34 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The python server of a RunnerAsync, either a process of its own or one forked by a Zygote
+ */
+public interface ServerProcess {
+
+    /**
+     * The server's stdin, which carries the commands
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * The server's stdout, which carries its log
+     */
+    InputStream getInputStream();
+
+    /**
+     * The server's stderr, which carries the responses
+     */
+    InputStream getErrorStream();
+
+    /**
+     * The process id, or null if it is not known
+     */
+    Long getProcessId();
+
+    boolean isAlive();
+
+    void destroy();
+}
@@ -0,0 +1,275 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BinaryOperator;
+
+/**
+ * A dataset spread over several python servers, so that functions over it run on as many cores as there are shards.
+ *
+ * Every command is sent to all the shards at once and then waited for. Values appended to a field are partitioned over the shards, code is
+ * run on every shard against its own part of the data, and the partial results are combined on the Java side: the Results of getResult by
+ * the result combiner (by default, adding the counts and totals), and the values of a mapped function by the combiner passed with it.
+ */
+public class ShardedDataset implements AutoCloseable {
+
+    private final List<Runner> shards;
+    private final Partitioning partitioning;
+    private final Map<String, Long> sizes = new HashMap<String, Long>();
+    private final Map<String, Map<String, BinaryOperator<Object>>> reducers = new HashMap<String, Map<String, BinaryOperator<Object>>>();
+    private BinaryOperator<Result> resultCombiner = ShardedDataset::addResults;
+
+    public ShardedDataset(int shardCount) throws Exception {
+        this(new RunnerConfig(), shardCount, Partitioning.range);
+    }
+
+    public ShardedDataset(RunnerConfig config, int shardCount, Partitioning partitioning) throws Exception {
+
+        if (shardCount < 1) {
+            throw new RunnerException("Invalid shard count: " + shardCount);
+        }
+
+        this.partitioning = partitioning;
+        this.shards = new ArrayList<Runner>(shardCount);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new Runner(config));
+            }
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * The Runner of one shard, for anything not covered here
+     */
+    public Runner getShard(int index) {
+        return shards.get(index);
+    }
+
+    public Partitioning getPartitioning() {
+        return partitioning;
+    }
+
+    // *****************************************************************************
+    // * Data
+    // *****************************************************************************
+    public void createArray(String field) throws RunnerException, IOException, InterruptedException {
+        createArray(field, ArrayType.list);
+    }
+
+    public void createArray(String field, ArrayType type) throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.createArray(field, type));
+        }
+        waitForAll(futures);
+
+        synchronized (sizes) {
+            sizes.put(field, 0L);
+        }
+    }
+
+    public void extendArray(String field, List<Double> list) throws RunnerException, IOException, InterruptedException {
+        double[] values = new double[list.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = list.get(i);
+        }
+        extendArray(field, values);
+    }
+
+    public void extendArray(String field, double[] values) throws RunnerException, IOException, InterruptedException {
+
+        int count = shards.size();
+
+        long offset;
+        synchronized (sizes) {
+            Long size = sizes.get(field);
+            offset = (size == null) ? 0 : size;
+            sizes.put(field, offset + values.length);
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int k = 0; k < count; k++) {
+            double[] part = partitioning.part(values, offset, k, count);
+            if (part.length > 0) {
+                futures.add(shards.get(k).asyncClient.extendArray(field, part));
+            }
+        }
+        waitForAll(futures);
+    }
+
+    // *****************************************************************************
+    // * Map
+    // *****************************************************************************
+
+    /**
+     * Run python code on every shard in parallel, each against its own part of the data
+     */
+    public void runPythonFunction(String pythonFunction) throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.runPythonFunction(pythonFunction));
+        }
+        waitForAll(futures);
+    }
+
+    /**
+     * Register a function on every shard. The shards register functions in the same order, so the handle is the same on all of them
+     */
+    public FunctionHandle registerFunction(String name, String source) throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<FunctionHandle>> futures = new ArrayList<CompletableFuture<FunctionHandle>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.registerFunction(name, source));
+        }
+
+        FunctionHandle function = null;
+        for (FunctionHandle handle : waitForAll(futures)) {
+            if (function != null && handle.getHandle() != function.getHandle()) {
+                throw new RunnerException("The shards gave different handles for " + name + ": " + function + " and " + handle);
+            }
+            function = handle;
+        }
+        return function;
+    }
+
+    /**
+     * Call a registered function on every shard in parallel, and combine the values it returns, in shard order
+     */
+    public Object mapReduce(FunctionHandle function, BinaryOperator<Object> combiner, Object... arguments)
+            throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.callFunction(function, arguments));
+        }
+        return combine(waitForAll(futures), combiner);
+    }
+
+    // *****************************************************************************
+    // * Reduce
+    // *****************************************************************************
+
+    /**
+     * How the Results of the shards are combined into one by getResult
+     */
+    public void setResultCombiner(BinaryOperator<Result> resultCombiner) {
+        this.resultCombiner = resultCombiner;
+    }
+
+    public Result getResult() throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Result>> futures = new ArrayList<CompletableFuture<Result>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.getResult());
+        }
+        return combine(waitForAll(futures), resultCombiner);
+    }
+
+    private static Result addResults(Result a, Result b) {
+        return new Result(a.getCount() + b.getCount(), a.getTotal() + b.getTotal());
+    }
+
+    public void aggregate(String field, Statistic... statistics) throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.aggregate(field, Arrays.asList(statistics)));
+        }
+        waitForAll(futures);
+    }
+
+    /**
+     * Keep a reduction on every shard. The reductions of the shards are combined by calling the function on the first shard
+     */
+    public void addReducer(String field, String name, final FunctionHandle function, Object initial)
+            throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.addReducer(field, name, function, initial));
+        }
+        waitForAll(futures);
+
+        final Runner first = shards.get(0);
+        BinaryOperator<Object> combiner = (a, b) -> {
+            try {
+                return first.query(function, a, b);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not combine the reductions of " + function, e);
+            }
+        };
+
+        synchronized (reducers) {
+            Map<String, BinaryOperator<Object>> combiners = reducers.get(field);
+            if (combiners == null) {
+                combiners = new HashMap<String, BinaryOperator<Object>>();
+                reducers.put(field, combiners);
+            }
+            combiners.put(name, combiner);
+        }
+    }
+
+    public Aggregates getAggregates(String field) throws RunnerException, IOException, InterruptedException {
+        List<CompletableFuture<Aggregates>> futures = new ArrayList<CompletableFuture<Aggregates>>();
+        for (Runner shard : shards) {
+            futures.add(shard.asyncClient.getAggregates(field));
+        }
+        List<Aggregates> parts = waitForAll(futures);
+
+        Map<String, BinaryOperator<Object>> combiners;
+        synchronized (reducers) {
+            combiners = reducers.containsKey(field) ? new HashMap<String, BinaryOperator<Object>>(reducers.get(field))
+                    : Collections.<String, BinaryOperator<Object>> emptyMap();
+        }
+
+        try {
+            return combine(parts, (a, b) -> a.plus(b, combiners));
+        } catch (IllegalStateException e) {
+            throw new RunnerException(e.getMessage(), e.getCause());
+        }
+    }
+
+    // *****************************************************************************
+    // * Helpers
+    // *****************************************************************************
+    private static <T> List<T> waitForAll(List<CompletableFuture<T>> futures) throws RunnerException, IOException, InterruptedException {
+        Runner.waitFor(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+
+        List<T> values = new ArrayList<T>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            values.add(future.join());
+        }
+        return values;
+    }
+
+    private static <T> T combine(List<T> values, BinaryOperator<T> combiner) {
+        T combined = values.get(0);
+        for (int i = 1; i < values.size(); i++) {
+            combined = combiner.apply(combined, values.get(i));
+        }
+        return combined;
+    }
+
+    @Override
+    public void close() throws Exception {
+        Exception failure = null;
+        for (Runner shard : shards) {
+            try {
+                shard.close();
+            } catch (Exception e) {
+                failure = (failure == null) ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
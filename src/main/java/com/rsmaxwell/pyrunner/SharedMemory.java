@@ -0,0 +1,136 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A memory-mapped file shared with the python server, used to hand over large arrays without copying them through the stdin pipe.
+ * 
+ * Regions are allocated from the front of the file, and stay allocated until the server has responded to the command which reads
+ * them. When no regions are outstanding the whole file is reused, and it is grown whenever a region does not fit.
+ */
+public class SharedMemory implements AutoCloseable {
+
+    private static final int minimumCapacity = 1024 * 1024;
+    private static final Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int top;
+    private int outstanding;
+
+    public SharedMemory() throws IOException {
+        File directory = new File("/dev/shm");
+        if (!directory.isDirectory()) {
+            directory = new File(System.getProperty("java.io.tmpdir"));
+        }
+
+        // Only this user may read or change the arrays, where the file system allows it
+        Path path;
+        if (Files.getFileStore(directory.toPath()).supportsFileAttributeView("posix")) {
+            path = Files.createTempFile(directory.toPath(), "pyrunner-", ".shm", PosixFilePermissions.asFileAttribute(ownerOnly));
+        } else {
+            path = Files.createTempFile(directory.toPath(), "pyrunner-", ".shm");
+        }
+        file = path.toFile();
+        file.deleteOnExit();
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        map(minimumCapacity);
+    }
+
+    public String getPath() {
+        return file.getAbsolutePath();
+    }
+
+    private void map(int size) throws IOException {
+        randomAccessFile.setLength(size);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        capacity = size;
+    }
+
+    /**
+     * Reserve a region of the given size, waiting for outstanding regions to be released if it does not fit
+     * 
+     * @return the offset of the region within the file
+     */
+    public synchronized int allocate(int size) throws IOException, InterruptedException {
+        while (true) {
+            if (top + size <= capacity) {
+                int offset = top;
+                top += size;
+                outstanding++;
+                return offset;
+            }
+
+            if (outstanding == 0) {
+                if (size > capacity) {
+                    map(Math.max(size, (int) Math.min(Integer.MAX_VALUE, 2L * capacity)));
+                }
+                continue;
+            }
+
+            wait();
+        }
+    }
+
+    public synchronized void release() {
+        outstanding--;
+        if (outstanding == 0) {
+            top = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Write the values into a previously allocated region as little-endian doubles
+     */
+    public void write(int offset, List<Double> list) {
+        ByteBuffer region;
+        synchronized (this) {
+            region = buffer.duplicate();
+        }
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        region.position(offset);
+        for (Double value : list) {
+            region.putDouble(value);
+        }
+    }
+
+    /**
+     * A copy of a region
+     */
+    public byte[] read(int offset, int length) {
+        ByteBuffer region;
+        synchronized (this) {
+            region = buffer.duplicate();
+        }
+        region.position(offset);
+        byte[] bytes = new byte[length];
+        region.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        randomAccessFile.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,10 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * The statistics which the server can keep up to date on a field as it is extended, without reading the whole field again
+ * 
+ * variance is the population variance
+ */
+public enum Statistic {
+    count, sum, min, max, mean, variance;
+}
@@ -0,0 +1,19 @@
+package com.rsmaxwell.pyrunner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the bytes read from a stream into messages
+ */
+public interface StreamDecoder {
+
+    /**
+     * Consume all the remaining bytes of a heap buffer
+     */
+    void decode(ByteBuffer buffer);
+
+    /**
+     * Called once at the end of the stream
+     */
+    void finish();
+}
@@ -0,0 +1,191 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A few threads which read the streams of many Runners, instead of each Runner having two reader threads of its own.
+ * 
+ * Process pipes cannot be selected on in Java 8, so each thread polls its streams with available(), which never blocks, and reads only what
+ * is there. The response streams of clients with requests pending are polled on every pass, and all the streams once every maxPark. When
+ * nothing arrives a thread yields and then parks for longer and longer, up to maxPark, and each request that is sent wakes the thread that
+ * will read its response. Once nothing has arrived for a while, as when the only request pending is a long run, the park grows further,
+ * to a tenth of the time it has been idle, up to maxIdlePark. A stream is always read by the same thread, so the messages of a Runner are
+ * handled in order.
+ * 
+ * available() cannot tell the end of a stream from an idle one, so a stream is finished once its process has died and nothing is left to
+ * read. The stream is never read with a blocking read, since another process may still hold the pipe open, such as one started by the
+ * server, and the thread would then stop reading every other stream.
+ */
+public class StreamReactor implements AutoCloseable {
+
+    static final int spins = 200;
+    static final long minPark = TimeUnit.MICROSECONDS.toNanos(20);
+    static final long maxPark = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long maxIdlePark = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static class Source {
+
+        final InputStream stream;
+        final StreamReader reader;
+        final ServerProcess process;
+        final RunnerAsync client;
+
+        Source(InputStream stream, StreamReader reader, ServerProcess process, RunnerAsync client) {
+            this.stream = stream;
+            this.reader = reader;
+            this.process = process;
+            this.client = client;
+        }
+
+        boolean expecting() {
+            return client != null && client.getPendingCount() > 0;
+        }
+    }
+
+    class Worker extends Thread {
+
+        private final ConcurrentLinkedQueue<Source> added = new ConcurrentLinkedQueue<Source>();
+        private final List<Source> sources = new ArrayList<Source>();
+        private volatile boolean woken;
+
+        Worker(int index) {
+            setName(StreamReactor.class.getName() + "." + index);
+            setDaemon(true);
+        }
+
+        void add(Source source) {
+            added.add(source);
+            wake();
+        }
+
+        /**
+         * Poll eagerly again, because a response is on its way
+         */
+        void wake() {
+            if (!woken) {
+                woken = true;
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(StreamReader.bufferSize);
+            int idle = 0;
+            long idleSince = System.nanoTime();
+            long lastSweep = 0;
+
+            while (!closed) {
+                Source source;
+                while ((source = added.poll()) != null) {
+                    sources.add(source);
+                }
+
+                long now = System.nanoTime();
+                boolean sweep = (now - lastSweep >= maxPark);
+                if (sweep) {
+                    lastSweep = now;
+                }
+
+                boolean busy = false;
+                Iterator<Source> iterator = sources.iterator();
+                while (iterator.hasNext()) {
+                    source = iterator.next();
+                    if (!sweep && !source.expecting()) {
+                        continue;
+                    }
+                    boolean read;
+                    try {
+                        read = poll(source, buffer);
+                    } catch (IOException e) {
+                        source.reader.finish();
+                        iterator.remove();
+                        continue;
+                    }
+                    if (read) {
+                        busy = true;
+                    } else if (sweep && !source.process.isAlive()) {
+                        source.reader.finish();
+                        iterator.remove();
+                    }
+                }
+
+                if (busy || woken) {
+                    woken = false;
+                    idle = 0;
+                    idleSince = now;
+                } else if (++idle < spins) {
+                    Thread.yield();
+                } else {
+                    long limit = Math.max(maxPark, Math.min(maxIdlePark, (now - idleSince) / 10));
+                    LockSupport.parkNanos(this, Math.min(limit, minPark << Math.min(idle - spins, 16)));
+                }
+            }
+        }
+    }
+
+    private final Worker[] workers;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    public StreamReactor() {
+        this(1);
+    }
+
+    public StreamReactor(int threads) {
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Start reading a stream of a process into a reader, which is not started as a thread of its own. The client is given for the stream
+     * which carries its responses, and null for the others. Returns the worker which reads the stream
+     */
+    Worker register(InputStream stream, StreamReader reader, ServerProcess process, RunnerAsync client) {
+        Worker worker = workers[Math.floorMod(next.getAndIncrement(), workers.length)];
+        worker.add(new Source(stream, reader, process, client));
+        return worker;
+    }
+
+    /**
+     * Read whatever is available, without blocking
+     */
+    private static boolean poll(Source source, ByteBuffer buffer) throws IOException {
+        int available = source.stream.available();
+        if (available <= 0) {
+            return false;
+        }
+
+        buffer.clear();
+        int count = source.stream.read(buffer.array(), 0, Math.min(available, buffer.capacity()));
+        if (count <= 0) {
+            return false;
+        }
+        buffer.limit(count);
+        source.reader.decode(buffer);
+        return true;
+    }
+
+    /**
+     * Stop the threads. The Runners which use this reactor must have been closed first
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
@@ -1,38 +1,55 @@
 
 package com.rsmaxwell.pyrunner;
 
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Thread that reads the process output. Extends class Thread, so InputThread instances need to be explicitly started using start()
+ * 
+ * The stream is read in bulk into a reusable buffer and split into lines by a LineDecoder, or into frames by a FrameDecoder
  */
-public class StreamReader extends Thread {
+public class StreamReader extends Thread implements LineDecoder.LineHandler {
 
     static final int CarriageReturn = 13;
     static final int LineFeed = 10;
+    static final int bufferSize = 64 * 1024;
 
     public enum Operation {
         stdout, stderr, logger;
     }
 
-    private InputStream stream;
+    private ReadableByteChannel channel;
     private List<String> lines;
     private List<RunnerObserver> observers;
     private Operation operation;
+    private StreamDecoder decoder;
+    private volatile Runnable onEnd;
 
     /**
      * @param outputStream
      * @param inputStream
      */
     public StreamReader(final InputStream stream, final Operation operation, final List<RunnerObserver> observers) {
-        this.stream = stream;
+        this(stream, operation, observers, null);
+        this.decoder = new LineDecoder(this);
+    }
+
+    /**
+     * Read the stream with a decoder of its own, which delivers the messages itself rather than as lines
+     */
+    public StreamReader(final InputStream stream, final Operation operation, final List<RunnerObserver> observers, final StreamDecoder decoder) {
+        this.channel = Channels.newChannel(stream);
+        this.decoder = decoder;
         this.observers = observers;
         this.operation = operation;
         this.lines = new ArrayList<String>();
+        setName(this.getClass().getName() + "." + operation);
+        setDaemon(true);
     }
 
     public synchronized List<String> read() {
@@ -41,8 +58,8 @@ public class StreamReader extends Thread {
         return temp;
     }
 
-    public synchronized void update(byte[] bytes) throws UnsupportedEncodingException {
-        String line = new String(bytes, "UTF-8");
+    @Override
+    public synchronized void line(String line, int length) {
         lines.add(line);
         notifyObservers();
     }
@@ -53,34 +70,52 @@ public class StreamReader extends Thread {
         }
     }
 
+    /**
+     * Decode bytes read by a StreamReactor, for a reader which has not been started as a thread
+     */
+    void decode(ByteBuffer buffer) {
+        decoder.decode(buffer);
+    }
+
+    void finish() {
+        decoder.finish();
+        ended();
+    }
+
+    /**
+     * Run the task once the stream has ended, or could not be read any further
+     */
+    void onEnd(Runnable task) {
+        this.onEnd = task;
+    }
+
+    private void ended() {
+        Runnable task = onEnd;
+        if (task != null) {
+            task.run();
+        }
+    }
+
     /**
     * 
     */
     @Override
     public void run() {
         try {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            int inputByte;
-            while ((inputByte = stream.read()) != -1) {
-
-                switch (inputByte) {
-                case CarriageReturn:
-                    update(buffer.toByteArray());
-                    buffer.reset();
-                    break;
-
-                case LineFeed:
-                    break;
-
-                default:
-                    buffer.write((byte) inputByte);
-                }
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                decoder.decode(buffer);
+                buffer.clear();
             }
+            finish();
 
         } catch (final Exception exception) {
             for (RunnerObserver observer : observers) {
                 observer.notify(Operation.logger);
             }
+            ended();
         }
     }
 }
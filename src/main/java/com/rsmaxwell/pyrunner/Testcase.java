@@ -1,10 +1,17 @@
 package com.rsmaxwell.pyrunner;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ThreadLocalRandom;
-
-import org.json.JSONObject;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public class Testcase implements RunnerLogger {
 
@@ -87,6 +94,7 @@ public class Testcase implements RunnerLogger {
             client.createArray("array");
 
             int iterations = 2;
+            List<CompletableFuture<Void>> extended = new ArrayList<CompletableFuture<Void>>();
             for (int a = 0; a < iterations; a++) {
                 List<Double> list = new ArrayList<Double>();
 
@@ -97,31 +105,32 @@ public class Testcase implements RunnerLogger {
                 }
 
                 System.out.println("(" + a + "):  Add " + size + " items to array");
-                client.extendArray("array", list);
+                extended.add(client.asyncClient.extendArray("array", list));
             }
+            Runner.waitFor(CompletableFuture.allOf(extended.toArray(new CompletableFuture<?>[0])));
 
             String functionName = "foobar";
             System.out.println("Run python function: " + functionName);
-            String token = client.asyncClient.runPythonFunction(functionName);
-            System.out.println("after MyAsyncRunner.runPythonFunction: token: " + token);
+            CompletableFuture<Void> done = client.asyncClient.runPythonFunction(functionName);
+            System.out.println("after RunnerAsync.runPythonFunction");
 
             // Do other stuff here ...
 
-            // But make sure that eventually "waitForResponse" is called, to clear the entry
-            // in the "ResponseMap" ... (otherwise there will be a leak!)
-            // "waitForResponse" can be called on a different thread
-
-            System.out.println("before RunnerAsync.waitForResponse: token: " + token);
-            client.asyncClient.waitForResponse(token);
-            System.out.println("after RunnerAsync.waitForResponse: exit");
+            // The futures are completed on the reader thread, so the next request can be
+            // chained on without parking a thread in between
 
             System.out.println("Get result");
-            token = client.asyncClient.getResult();
+            CompletableFuture<Result> future = done.thenCompose(nothing -> {
+                try {
+                    return client.asyncClient.getResult();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
 
             // Do other stuff here ...
 
-            JSONObject jObject = client.asyncClient.waitForResponse(token);
-            Result result = client.asyncClient.handleResponseGetResult(jObject);
+            Result result = Runner.waitFor(RunnerAsync.withTimeout(future, 10, TimeUnit.SECONDS));
 
             System.out.println("Result:");
             System.out.println("     count = " + result.getCount());
@@ -185,6 +194,248 @@ public class Testcase implements RunnerLogger {
         }
     }
 
+    // *****************************************************************************
+    // * Transfer Benchmark: extendArray for each Transfer mode
+    // *****************************************************************************
+    public void transferTest() throws Exception {
+
+        int[] sizes = { 1000, 10000, 100000 };
+        int iterations = 5;
+
+        Path directory = Files.createTempDirectory("pyrunner");
+        RunnerConfig config = new RunnerConfig();
+        config.setLogLevel(LogLevel.quiet);
+        config.setDataDirectory(directory.toString());
+
+        try (Runner client = new Runner(config)) {
+
+            for (int size : sizes) {
+                List<Double> list = new ArrayList<Double>();
+                for (int b = 0; b < size; b++) {
+                    list.add(ThreadLocalRandom.current().nextDouble(0.0, 1.0));
+                }
+
+                for (Transfer transfer : Transfer.values()) {
+                    client.createArray("array");
+
+                    // warm up
+                    client.extendArray("array", list, transfer);
+
+                    long starttime = System.nanoTime();
+                    for (int a = 0; a < iterations; a++) {
+                        client.extendArray("array", list, transfer);
+                    }
+                    long nanoseconds = (System.nanoTime() - starttime) / iterations;
+
+                    System.out.println(String.format("%-8s size: %9d   nanoseconds/call: %12d   nanoseconds/value: %8.1f", transfer, size, nanoseconds,
+                            (double) nanoseconds / size));
+                }
+            }
+
+            client.runPythonFunction("foobar");
+            Result result = client.getResult();
+            System.out.println("Result:");
+            System.out.println("     count = " + result.getCount());
+            System.out.println("     total = " + result.getTotal());
+
+            // shared transfers carry float64 values, which an int64 field refuses without being changed
+            List<Double> values = Arrays.asList(1.0, 2.0, 3.0);
+            client.createArray("counts", ArrayType.int64);
+            client.createMappedArray("mapped", ArrayType.int64);
+            for (String field : Arrays.asList("counts", "mapped")) {
+                try {
+                    client.extendArray(field, values, Transfer.shared);
+                    System.out.println(field + ": shared extend accepted (expected it to be refused)");
+                } catch (RunnerException e) {
+                    System.out.println(field + ": " + e.getMessage());
+                }
+                client.extendArray(field, new long[] { 1, 2, 3 });
+                System.out.println(field + " = " + Arrays.toString(client.getArray(field)) + " (expected [1.0, 2.0, 3.0])");
+            }
+
+        } catch (RunnerException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // *****************************************************************************
+    // * Stream Test: a large primitive upload in pipelined chunks
+    // *****************************************************************************
+    public void streamTest() throws Exception {
+
+        RunnerConfig config = new RunnerConfig();
+        config.setLogLevel(LogLevel.quiet);
+
+        try (Runner client = new Runner(config)) {
+
+            client.createArray("array");
+
+            long size = 10000000;
+            System.out.println("Add " + size + " items to array");
+            long starttime = System.nanoTime();
+            client.extendArray("array", ThreadLocalRandom.current().doubles(size, 0.0, 1.0));
+            System.out.println("nanoseconds: " + (System.nanoTime() - starttime));
+
+            double[] values = new double[1000000];
+            Arrays.fill(values, 1.0);
+            System.out.println("Add " + values.length + " items to array");
+            starttime = System.nanoTime();
+            client.extendArray("array", values);
+            System.out.println("nanoseconds: " + (System.nanoTime() - starttime));
+
+            client.runPythonFunction("foobar");
+            Result result = client.getResult();
+            System.out.println("Result:");
+            System.out.println("     count = " + result.getCount());
+            System.out.println("     total = " + result.getTotal());
+
+        } catch (RunnerException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    // *****************************************************************************
+    // * Function Test: registered function called by handle vs runPythonFunction
+    // *****************************************************************************
+    public void functionTest() throws Exception {
+
+        RunnerConfig config = new RunnerConfig();
+        config.setLogLevel(LogLevel.quiet);
+
+        try (Runner client = new Runner(config)) {
+
+            client.createArray("array");
+            client.extendArray("array", new double[] { 1.0, 2.0, 3.0 });
+
+            String source = "def scaledTotal(factor):\n    return factor * sum(data['array'])\n";
+            FunctionHandle function = client.registerFunction("scaledTotal", source);
+            System.out.println("Registered: " + function);
+            System.out.println("scaledTotal(2.0) = " + client.callFunction(function, 2.0));
+
+            int iterations = 1000;
+
+            long starttime = System.nanoTime();
+            for (int a = 0; a < iterations; a++) {
+                client.runPythonFunction("foobar");
+            }
+            System.out.println("runPythonFunction nanoseconds/call: " + (System.nanoTime() - starttime) / iterations);
+
+            FunctionHandle foobar = client.lookupFunction("foobar");
+            starttime = System.nanoTime();
+            for (int a = 0; a < iterations; a++) {
+                client.callFunction(foobar);
+            }
+            System.out.println("callFunction      nanoseconds/call: " + (System.nanoTime() - starttime) / iterations);
+
+        } catch (RunnerException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    // *****************************************************************************
+    // * Batch Test: the standard test in one round trip
+    // *****************************************************************************
+    public void batchTest() throws Exception {
+
+        try (Runner client = new Runner()) {
+
+            Batch batch = client.batch();
+            batch.createArray("array");
+
+            int iterations = 2;
+            for (int a = 0; a < iterations; a++) {
+                List<Double> list = new ArrayList<Double>();
+
+                int size = 1000;
+                for (int b = 0; b < size; b++) {
+                    double value = ThreadLocalRandom.current().nextDouble(0.0, 1.0);
+                    list.add(value);
+                }
+                batch.extendArray("array", list);
+            }
+
+            batch.runPythonFunction("foobar");
+            batch.getResult();
+
+            System.out.println("Send batch of " + batch.size() + " operations");
+            long starttime = System.nanoTime();
+            BatchResult results = client.execute(batch);
+            System.out.println("nanoseconds: " + (System.nanoTime() - starttime));
+
+            Result result = results.getResult(results.size() - 1);
+            System.out.println("Result:");
+            System.out.println("     count = " + result.getCount());
+            System.out.println("     total = " + result.getTotal());
+
+        } catch (RunnerException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    // *****************************************************************************
+    // * Failover Test: the standby takes over with the aggregates, reducers and
+    // * function handles of the server which died
+    // *****************************************************************************
+    public void failoverTest() throws Exception {
+
+        RunnerConfig config = new RunnerConfig();
+        config.setLogLevel(LogLevel.quiet);
+        config.setStandby(true);
+
+        try (Runner client = new Runner(config)) {
+
+            client.createArray("array", ArrayType.float64);
+            client.extendArray("array", new double[] { 1.0, 2.0, 3.0 });
+            client.aggregate("array", Statistic.count, Statistic.sum);
+
+            FunctionHandle add = client.registerFunction("add", "def add(a, b):\n    return a + b\n");
+            client.addReducer("array", "total", add, 0.0);
+
+            // foobar is looked up before scaledTotal is registered, so the handles depend on the order of the two
+            FunctionHandle foobar = client.lookupFunction("foobar");
+            FunctionHandle scaledTotal = client.registerFunction("scaledTotal", "def scaledTotal(factor):\n    return factor * sum(data['array'])\n");
+
+            // Only the server with the given pid exits, so that the query does no harm when it is sent again to the standby
+            FunctionHandle exit = client.registerFunction("exitIf", "def exitIf(pid):\n    if os.getpid() == pid:\n        os._exit(1)\n");
+            FunctionHandle pid = client.registerFunction("pid", "def pid():\n    return os.getpid()\n");
+
+            while (!client.asyncClient.isStandbyReady()) {
+                Thread.sleep(10);
+            }
+
+            Object primary = client.query(pid);
+            try {
+                client.asyncClient.query(exit, primary);
+            } catch (Exception e) {
+                // the query is answered by the standby
+            }
+            client.extendArray("array", new double[] { 4.0 });
+
+            System.out.println("pid: " + primary + " -> " + client.query(pid) + ", failovers = " + client.asyncClient.getFailoverCount());
+
+            Aggregates aggregates = client.getAggregates("array");
+            System.out.println("count = " + aggregates.getCount() + " (expected 4), sum = " + aggregates.getSum() + " (expected 10.0), total = "
+                    + aggregates.getReduction("total") + " (expected 10.0)");
+
+            client.callFunction(foobar);
+            System.out.println("foobar: count = " + client.getResult().getCount() + " (expected 4)");
+            System.out.println("scaledTotal(2.0) = " + client.callFunction(scaledTotal, 2.0) + " (expected 20.0)");
+
+        } catch (RunnerException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     // *****************************************************************************
     // * Logger
     // *****************************************************************************
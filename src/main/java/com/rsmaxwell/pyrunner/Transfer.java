@@ -0,0 +1,14 @@
+package com.rsmaxwell.pyrunner;
+
+/**
+ * How the values of an extendArray call are sent to the python server
+ * 
+ * text: as a python literal, exec'ed by the server
+ * 
+ * binary: as a length-prefixed block of little-endian IEEE-754 doubles, loaded by the server with array('d')
+ * 
+ * shared: written into a memory-mapped file which the server maps too, so only the path, offset and length go through the pipe
+ */
+public enum Transfer {
+    text, binary, shared;
+}
@@ -0,0 +1,121 @@
+package com.rsmaxwell.pyrunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A long-lived python process which has loaded the server and its modules once, and then forks a fresh server for each RunnerAsync whose
+ * RunnerConfig names it, so that starting a Runner costs a fork rather than starting an interpreter.
+ * 
+ * Forking needs a unix, so a Zygote is only available on Linux.
+ */
+public class Zygote implements AutoCloseable {
+
+    private final Process process;
+    private final OutputStream requests;
+    private final BufferedReader responses;
+
+    public Zygote() throws Exception {
+        this(new RunnerConfig());
+    }
+
+    /**
+     * Start the zygote, preloading the modules of the config
+     */
+    public Zygote(RunnerConfig config) throws Exception {
+
+        String os = System.getProperty("os.name");
+        if (!os.equals("Linux")) {
+            throw new RunnerException("A zygote is not supported on: " + os);
+        }
+
+        final List<String> command = new ArrayList<String>();
+        command.add(RunnerAsync.findPythonExecutable());
+        command.add("server.py");
+        command.add("--zygote");
+        command.add("--log-level");
+        command.add(config.getLogLevel().name());
+        for (String module : config.getModules()) {
+            command.add("--module");
+            command.add(module);
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectOutput(Redirect.INHERIT);
+        process = pb.start();
+
+        requests = process.getOutputStream();
+        responses = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8));
+    }
+
+    private synchronized JSONObject request(JSONObject jObject) throws IOException, RunnerException {
+        requests.write(jObject.toString().getBytes(StandardCharsets.UTF_8));
+        requests.write(RunnerAsync.LineFeed);
+        requests.flush();
+
+        String line = responses.readLine();
+        if (line == null) {
+            throw new RunnerException("The zygote has exited");
+        }
+
+        JSONObject response = new JSONObject(line);
+        if (!"ok".equals(response.optString("status"))) {
+            throw new RunnerException("zygote: " + response.optString("message", "unexpected error"));
+        }
+        return response;
+    }
+
+    /**
+     * Fork a server with the log level and protocol of the config, which also loads the modules of the config that the zygote has not
+     */
+    ServerProcess fork(RunnerConfig config) throws IOException, RunnerException {
+        JSONObject jObject = RunnerAsync.simpleCommand("fork");
+        jObject.put("logLevel", config.getLogLevel().name());
+        jObject.put("protocol", (config.getProtocol() == Protocol.framed) ? Frame.Version : 1);
+        jObject.put("modules", new JSONArray(config.getModules()));
+        if (config.getDataDirectory() != null) {
+            jObject.put("dataDirectory", config.getDataDirectory());
+        }
+        jObject.put("workers", config.getWorkerThreads());
+        jObject.put("switchInterval", config.getSwitchInterval());
+
+        JSONObject response = request(jObject);
+        return new ForkedServerProcess(this, response.getLong("pid"), response.getString("path"));
+    }
+
+    void kill(long pid) {
+        JSONObject jObject = RunnerAsync.simpleCommand("kill");
+        jObject.put("pid", pid);
+        try {
+            request(jObject);
+        } catch (Exception e) {
+            // the zygote has gone, and so have its children's pipes
+        }
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Stop forking. Servers already forked carry on until their Runners are closed
+     */
+    @Override
+    public void close() {
+        try {
+            request(RunnerAsync.simpleCommand("quit"));
+        } catch (Exception e) {
+            // it is going anyway
+        }
+        process.destroy();
+    }
+}
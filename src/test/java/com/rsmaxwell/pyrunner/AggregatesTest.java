@@ -0,0 +1,128 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+import org.junit.Test;
+
+public class AggregatesTest {
+
+    private static final Map<String, BinaryOperator<Object>> NoReducers = Collections.emptyMap();
+
+    /**
+     * The aggregates the server would report for the given values, with the population variance
+     */
+    private static Aggregates of(double... values) {
+        if (values.length == 0) {
+            return new Aggregates(0, null, null, null, null, null, new HashMap<String, Object>());
+        }
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double mean = sum / values.length;
+        double m2 = 0;
+        for (double value : values) {
+            m2 += (value - mean) * (value - mean);
+        }
+        return new Aggregates(values.length, sum, min, max, mean, m2 / values.length, new HashMap<String, Object>());
+    }
+
+    private static void assertSame(Aggregates expected, Aggregates actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getSum(), actual.getSum(), 1e-9);
+        assertEquals(expected.getMin(), actual.getMin(), 0);
+        assertEquals(expected.getMax(), actual.getMax(), 0);
+        assertEquals(expected.getMean(), actual.getMean(), 1e-9);
+        assertEquals(expected.getVariance(), actual.getVariance(), 1e-9);
+    }
+
+    @Test
+    public void plusMatchesTheAggregatesOfAllTheValues() {
+        double[] left = { 1, 2, 3, 4 };
+        double[] right = { 10, 20, 30 };
+        assertSame(of(1, 2, 3, 4, 10, 20, 30), of(left).plus(of(right), NoReducers));
+        assertSame(of(1, 2, 3, 4, 10, 20, 30), of(right).plus(of(left), NoReducers));
+    }
+
+    @Test
+    public void plusWeightsTheMeansAndVariancesByCount() {
+        Aggregates combined = of(5).plus(of(-3, 7, 7, 100, 0.5), NoReducers);
+        assertSame(of(5, -3, 7, 7, 100, 0.5), combined);
+    }
+
+    @Test
+    public void plusOfManyPartsMatchesOnePass() {
+        double[] values = new double[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1e6 + (i * 37 % 11) - 0.25 * i;
+        }
+
+        Aggregates combined = of();
+        for (int from = 0; from < values.length; from += 7) {
+            combined = combined.plus(of(Arrays.copyOfRange(values, from, Math.min(from + 7, values.length))), NoReducers);
+        }
+        assertSame(of(values), combined);
+    }
+
+    @Test
+    public void plusWithAnEmptyPartKeepsTheOther() {
+        assertSame(of(2, 4, 9), of().plus(of(2, 4, 9), NoReducers));
+        assertSame(of(2, 4, 9), of(2, 4, 9).plus(of(), NoReducers));
+
+        Aggregates empty = of().plus(of(), NoReducers);
+        assertEquals(0, empty.getCount());
+        assertNull(empty.getSum());
+        assertNull(empty.getMin());
+        assertNull(empty.getMax());
+        assertNull(empty.getMean());
+        assertNull(empty.getVariance());
+    }
+
+    @Test
+    public void plusKeepsAStatisticWhichOnlyOneSideDeclared() {
+        Aggregates left = new Aggregates(2, 3.0, null, null, null, null, new HashMap<String, Object>());
+        Aggregates right = new Aggregates(3, 4.0, 1.0, null, null, null, new HashMap<String, Object>());
+        Aggregates combined = left.plus(right, NoReducers);
+        assertEquals(5, combined.getCount());
+        assertEquals(7.0, combined.getSum(), 0);
+        assertEquals(1.0, combined.getMin(), 0);
+        assertNull(combined.getMax());
+        assertNull(combined.getMean());
+        assertNull(combined.getVariance());
+    }
+
+    @Test
+    public void plusCombinesReductionsWithTheirReducers() {
+        Map<String, Object> leftReductions = new HashMap<String, Object>();
+        leftReductions.put("product", 6);
+        leftReductions.put("last", "a");
+        leftReductions.put("onlyLeft", 1);
+        Map<String, Object> rightReductions = new HashMap<String, Object>();
+        rightReductions.put("product", 5);
+        rightReductions.put("last", "b");
+
+        Map<String, BinaryOperator<Object>> reducers = new HashMap<String, BinaryOperator<Object>>();
+        reducers.put("product", (a, b) -> ((Integer) a) * ((Integer) b));
+        reducers.put("onlyLeft", (a, b) -> a);
+
+        Aggregates left = new Aggregates(1, null, null, null, null, null, leftReductions);
+        Aggregates right = new Aggregates(1, null, null, null, null, null, rightReductions);
+        Aggregates combined = left.plus(right, reducers);
+
+        assertEquals(30, combined.getReduction("product"));
+        assertFalse("a reduction without a reducer is dropped", combined.getReductions().containsKey("last"));
+        assertFalse("a reduction on one side only is dropped", combined.getReductions().containsKey("onlyLeft"));
+    }
+}
@@ -0,0 +1,99 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DataVersionsTest {
+
+    static JSONObject response(long generation, long epoch, String field, long version) {
+        JSONObject response = new JSONObject();
+        response.put("generation", generation);
+        response.put("epoch", epoch);
+        if (field != null) {
+            response.put("versions", new JSONObject().put(field, version));
+        }
+        return response;
+    }
+
+    static void mutate(DataVersions versions, JSONObject response) {
+        versions.begin();
+        versions.end(response);
+    }
+
+    @Test
+    public void knowsWhichCommandsAreMutations() {
+        for (String command : new String[] { "run", "call", "registerFunction", "extend", "extendShared", "restore", "aggregate", "addReducer",
+                "batch" }) {
+            assertTrue(command, DataVersions.isMutation(command));
+        }
+        for (String command : new String[] { "get", "getArray", "query", "getAggregates", "lookupFunction", "ping", "snapshot" }) {
+            assertFalse(command, DataVersions.isMutation(command));
+        }
+    }
+
+    @Test
+    public void stampsNothingWhileAMutationIsInFlight() {
+        DataVersions versions = new DataVersions();
+        DataVersions.Stamp before = versions.stamp("a");
+
+        versions.begin();
+        assertNull(versions.stamp("a"));
+        assertNull(versions.stamp(null));
+        assertFalse(versions.isCurrent(before));
+
+        versions.end(response(1, 0, "b", 1));
+        assertNotNull(versions.stamp("a"));
+    }
+
+    @Test
+    public void aMutationOfOneFieldLeavesTheReadsOfAnotherCurrent() {
+        DataVersions versions = new DataVersions();
+        DataVersions.Stamp a = versions.stamp("a");
+        DataVersions.Stamp b = versions.stamp("b");
+
+        mutate(versions, response(1, 0, "b", 1));
+
+        assertTrue(versions.isCurrent(a));
+        assertFalse(versions.isCurrent(b));
+    }
+
+    @Test
+    public void anyMutationMakesAQueryStale() {
+        DataVersions versions = new DataVersions();
+        DataVersions.Stamp query = versions.stamp(null);
+
+        mutate(versions, response(1, 0, "b", 1));
+
+        assertFalse(versions.isCurrent(query));
+        assertTrue(versions.isCurrent(versions.stamp(null)));
+    }
+
+    @Test
+    public void codeWhichMayChangeAnyFieldMakesEveryReadStale() {
+        DataVersions versions = new DataVersions();
+        DataVersions.Stamp a = versions.stamp("a");
+
+        mutate(versions, response(1, 1, null, 0));
+
+        assertFalse(versions.isCurrent(a));
+        assertTrue(versions.isCurrent(versions.stamp("a")));
+    }
+
+    @Test
+    public void keepsTheNewestVersionsWhenResponsesArriveOutOfOrder() {
+        DataVersions versions = new DataVersions();
+        versions.begin();
+        versions.begin();
+        versions.end(response(2, 0, "a", 2));
+        versions.end(response(1, 0, "a", 1));
+
+        DataVersions.Stamp stamp = versions.stamp("a");
+        mutate(versions, response(2, 0, "a", 2));
+        assertTrue(versions.isCurrent(stamp));
+    }
+}
@@ -0,0 +1,197 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameDecoderTest {
+
+    private static class Decoded {
+        final int opcode;
+        final int status;
+        final long id;
+        final byte[] body;
+
+        Decoded(int opcode, int status, long id, byte[] body) {
+            this.opcode = opcode;
+            this.status = status;
+            this.id = id;
+            this.body = body;
+        }
+    }
+
+    private List<Decoded> frames;
+    private List<String> errors;
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        frames = new ArrayList<Decoded>();
+        errors = new ArrayList<String>();
+        decoder = new FrameDecoder(new FrameDecoder.FrameHandler() {
+            @Override
+            public void frame(int opcode, int status, long id, byte[] body) {
+                frames.add(new Decoded(opcode, status, id, body));
+            }
+
+            @Override
+            public void error(String message) {
+                errors.add(message);
+            }
+        });
+    }
+
+    private static byte[] body(String json, byte[] binary) {
+        byte[] encoded = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.JsonLengthSize + encoded.length + binary.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(encoded.length);
+        buffer.put(encoded);
+        buffer.put(binary);
+        return buffer.array();
+    }
+
+    private static byte[] frame(int opcode, int status, long id, byte[] body) {
+        return frame(opcode, status, id, body, body.length);
+    }
+
+    private static byte[] frame(int opcode, int status, long id, byte[] body, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.HeaderSize + body.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(Frame.Magic0);
+        buffer.put(Frame.Magic1);
+        buffer.put((byte) Frame.Version);
+        buffer.put((byte) opcode);
+        buffer.put((byte) status);
+        buffer.put((byte) 0);
+        buffer.putShort((short) 0);
+        buffer.putLong(id);
+        buffer.putInt(length);
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            stream.write(part, 0, part.length);
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void decodesAFrameInOneBuffer() {
+        byte[] body = body("{\"count\":3}", new byte[] { 1, 2, 3 });
+        decoder.decode(ByteBuffer.wrap(frame(4, 0, 42L, body)));
+
+        assertEquals(1, frames.size());
+        Decoded decoded = frames.get(0);
+        assertEquals(4, decoded.opcode);
+        assertEquals(0, decoded.status);
+        assertEquals(42L, decoded.id);
+        assertArrayEquals(body, decoded.body);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void decodesFramesFedOneByteAtATime() {
+        byte[] first = body("{}", new byte[0]);
+        byte[] second = body("{\"message\":\"no\"}", new byte[] { 9 });
+        byte[] bytes = concat(frame(2, 0, 1L, first), frame(3, 1, 0x1234567890L, second));
+
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(ByteBuffer.wrap(bytes, i, 1));
+        }
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(first, frames.get(0).body);
+        assertEquals(1, frames.get(1).status);
+        assertEquals(0x1234567890L, frames.get(1).id);
+        assertArrayEquals(second, frames.get(1).body);
+    }
+
+    @Test
+    public void completesAPartialHeaderAndAPartialBodyFromLaterBuffers() {
+        byte[] body = body("{\"result\":1}", new byte[100]);
+        byte[] bytes = frame(5, 0, 7L, body);
+
+        decoder.decode(ByteBuffer.wrap(bytes, 0, 11));
+        decoder.decode(ByteBuffer.wrap(bytes, 11, Frame.HeaderSize + 5 - 11));
+        assertTrue(frames.isEmpty());
+
+        decoder.decode(ByteBuffer.wrap(bytes, Frame.HeaderSize + 5, bytes.length - Frame.HeaderSize - 5));
+        assertEquals(1, frames.size());
+        assertArrayEquals(body, frames.get(0).body);
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneBufferAndAPartOfTheNext() {
+        byte[] next = frame(3, 0, 3L, body("{}", new byte[0]));
+        byte[] bytes = concat(frame(2, 0, 1L, body("{}", new byte[0])), frame(2, 0, 2L, body("{}", new byte[0])), next);
+
+        decoder.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 3));
+        assertEquals(2, frames.size());
+
+        decoder.decode(ByteBuffer.wrap(bytes, bytes.length - 3, 3));
+        assertEquals(3, frames.size());
+        assertEquals(3L, frames.get(2).id);
+    }
+
+    @Test
+    public void reportsABadMagicAndIgnoresTheRestOfTheStream() {
+        byte[] text = "Traceback (most recent call last):\n".getBytes(StandardCharsets.US_ASCII);
+        decoder.decode(ByteBuffer.wrap(concat(text, frame(2, 0, 1L, body("{}", new byte[0])))));
+
+        assertEquals(1, errors.size());
+        assertTrue(frames.isEmpty());
+
+        decoder.decode(ByteBuffer.wrap(frame(2, 0, 2L, body("{}", new byte[0]))));
+        assertEquals(1, errors.size());
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void reportsANegativeBodyLength() {
+        decoder.decode(ByteBuffer.wrap(frame(2, 0, 1L, new byte[0], -8)));
+        assertEquals(1, errors.size());
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void reportsABodyLengthAboveTheLimit() {
+        decoder.decode(ByteBuffer.wrap(frame(2, 0, 1L, new byte[0], Frame.MaxBodyLength + 1)));
+        assertEquals(1, errors.size());
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void reportsABodyTooShortForItsJsonLength() {
+        decoder.decode(ByteBuffer.wrap(frame(2, 0, 1L, new byte[2])));
+        assertEquals(1, errors.size());
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void reportsAStreamWhichEndsPartWayThroughAFrame() {
+        byte[] bytes = frame(2, 0, 1L, body("{}", new byte[0]));
+        decoder.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+        decoder.finish();
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void endsQuietlyAfterACompleteFrame() {
+        decoder.decode(ByteBuffer.wrap(frame(2, 0, 1L, body("{}", new byte[0]))));
+        decoder.finish();
+        assertEquals(1, frames.size());
+        assertTrue(errors.isEmpty());
+    }
+}
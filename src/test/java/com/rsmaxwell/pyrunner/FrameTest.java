@@ -0,0 +1,61 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class FrameTest {
+
+    private static ByteBuffer header(int opcode, Priority priority, long id, int jsonLength, int binaryLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.HeaderSize + Frame.JsonLengthSize);
+        Frame.putHeader(buffer, opcode, priority, id, jsonLength, binaryLength);
+        assertEquals(buffer.capacity(), buffer.position());
+        return buffer;
+    }
+
+    @Test
+    public void putHeaderWritesTheLayoutTheServerUnpacks() {
+        ByteBuffer buffer = header(Frame.opcode("query"), Priority.normal, 0x0102030405060708L, 11, 16);
+
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+        assertEquals('P', buffer.get(0));
+        assertEquals('R', buffer.get(1));
+        assertEquals(Frame.Version, buffer.get(2));
+        assertEquals(Frame.opcode("query"), buffer.get(3));
+        assertEquals(Frame.StatusOk, buffer.get(4));
+        assertEquals(0, buffer.get(6));
+        assertEquals(0, buffer.get(7));
+        assertEquals(0x08, buffer.get(8));
+        assertEquals(0x0102030405060708L, buffer.getLong(8));
+        assertEquals(Frame.JsonLengthSize + 11 + 16, buffer.getInt(16));
+        assertEquals(11, buffer.getInt(20));
+    }
+
+    @Test
+    public void putHeaderWritesThePriorityOrdinal() {
+        for (Priority priority : Priority.values()) {
+            ByteBuffer buffer = header(Frame.opcode("get"), priority, 1, 0, 0);
+            assertEquals(priority.ordinal(), buffer.get(5));
+        }
+        // The server looks the ordinal up in its PRIORITIES list, which must be in the same order
+        assertEquals(0, Priority.normal.ordinal());
+        assertEquals(1, Priority.fast.ordinal());
+        assertEquals(2, Priority.background.ordinal());
+    }
+
+    @Test
+    public void opcodesAndCommandsMapBothWays() {
+        assertEquals(Frame.Hello, Frame.opcode("hello"));
+        for (int opcode = 0; opcode < Frame.opcodeCount(); opcode++) {
+            assertEquals(opcode, Frame.opcode(Frame.command(opcode)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aCommandWithoutAnOpcodeIsRejected() {
+        Frame.opcode("nonsense");
+    }
+}
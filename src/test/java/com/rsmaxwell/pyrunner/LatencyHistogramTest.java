@@ -0,0 +1,76 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private static void assertWithinBound(long nanos) {
+        int bucket = LatencyHistogram.bucket(nanos);
+        long upper = LatencyHistogram.upperBound(bucket);
+        assertTrue(bucket >= 0 && bucket < LatencyHistogram.Buckets);
+        assertTrue(nanos + " is above its bucket's bound " + upper, nanos <= upper);
+        assertTrue(upper + " is more than 25% above " + nanos, upper - nanos <= nanos / 4);
+        if (bucket > 0) {
+            assertTrue(nanos + " also fits the bucket below", nanos > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void everyValueIsAtMostAQuarterBelowItsBucketsBound() {
+        for (long nanos = 0; nanos < 100000; nanos++) {
+            assertWithinBound(nanos);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            assertWithinBound(random.nextLong() & Long.MAX_VALUE);
+        }
+        assertWithinBound(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void bucketsAreInOrderAndEachBoundFallsInItsOwnBucket() {
+        for (int bucket = 0; bucket < LatencyHistogram.Buckets; bucket++) {
+            assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.upperBound(bucket)));
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.upperBound(bucket) > LatencyHistogram.upperBound(bucket - 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.Buckets - 1));
+    }
+
+    @Test
+    public void negativeLatenciesCountAsZero() {
+        assertEquals(0, LatencyHistogram.bucket(-5));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBoundOfTheTrueValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        long[] buckets = new long[LatencyHistogram.Buckets];
+        long total = histogram.addTo(buckets);
+        CommandStatistics statistics = new CommandStatistics("echo", 0, total, histogram.getMax(), buckets);
+
+        assertEquals(1000, statistics.getCount());
+        assertEquals(500.5, statistics.getMeanMicros(), 1e-9);
+        assertEquals(1000, statistics.getMaxMicros(), 0);
+        assertTrue(statistics.getP50Micros() >= 500 && statistics.getP50Micros() <= 500 * 1.25);
+        assertTrue(statistics.getP90Micros() >= 900 && statistics.getP90Micros() <= 900 * 1.25);
+        assertTrue(statistics.getP99Micros() >= 990 && statistics.getP99Micros() <= 1000);
+    }
+
+    @Test
+    public void percentilesOfNothingAreZero() {
+        CommandStatistics statistics = new CommandStatistics("echo", 0, 0, 0, new long[LatencyHistogram.Buckets]);
+        assertEquals(0, statistics.getP50Micros(), 0);
+        assertEquals(0, statistics.getP99Micros(), 0);
+    }
+}
@@ -0,0 +1,139 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LineDecoderTest {
+
+    private List<String> lines;
+    private List<Integer> lengths;
+    private LineDecoder decoder;
+
+    @Before
+    public void setUp() {
+        lines = new ArrayList<String>();
+        lengths = new ArrayList<Integer>();
+        decoder = new LineDecoder((line, length) -> {
+            lines.add(line);
+            lengths.add(length);
+        });
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void feed(byte[] bytes, int... splits) {
+        int start = 0;
+        for (int split : splits) {
+            decoder.decode(ByteBuffer.wrap(bytes, start, split - start));
+            start = split;
+        }
+        decoder.decode(ByteBuffer.wrap(bytes, start, bytes.length - start));
+    }
+
+    @Test
+    public void splitsOnLineFeedAndCarriageReturnLineFeed() {
+        feed(bytes("one\ntwo\r\nthree\n"));
+        assertEquals(Arrays.asList("one", "two", "three"), lines);
+    }
+
+    @Test
+    public void keepsEmptyLinesAndCarriageReturnsInsideALine() {
+        feed(bytes("\n\r\na\rb\n"));
+        assertEquals(Arrays.asList("", "", "a\rb"), lines);
+    }
+
+    @Test
+    public void joinsALineWhichSpansBuffers() {
+        byte[] bytes = bytes("first\nsec");
+        decoder.decode(ByteBuffer.wrap(bytes));
+        assertEquals(Arrays.asList("first"), lines);
+
+        decoder.decode(ByteBuffer.wrap(bytes("ond\nthird")));
+        assertEquals(Arrays.asList("first", "second"), lines);
+    }
+
+    @Test
+    public void stripsACarriageReturnWhoseLineFeedIsInTheNextBuffer() {
+        byte[] bytes = bytes("abc\r\ndef\n");
+        feed(bytes, 4);
+        assertEquals(Arrays.asList("abc", "def"), lines);
+    }
+
+    @Test
+    public void decodesACharacterWhoseBytesAreSplitAcrossBuffers() {
+        byte[] bytes = bytes("café €\n");
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(ByteBuffer.wrap(bytes, i, 1));
+        }
+        assertEquals(Arrays.asList("café €"), lines);
+    }
+
+    @Test
+    public void growsForALongLineSpanningManyBuffers() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        String line = builder.toString();
+        byte[] bytes = bytes(line + "\nnext\n");
+
+        feed(bytes, 100, 1000, 4999, 5000, 5001);
+        assertEquals(Arrays.asList(line, "next"), lines);
+    }
+
+    @Test
+    public void countsTheBytesOfEachLineWithItsEnding() {
+        byte[] bytes = bytes("one\r\ncafé\n\nlast");
+        feed(bytes, 2, 6, 9);
+        decoder.finish();
+        assertEquals(Arrays.asList("one", "café", "", "last"), lines);
+        assertEquals(Arrays.asList(5, 6, 1, 4), lengths);
+
+        int total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        assertEquals(bytes.length, total);
+    }
+
+    @Test
+    public void readsOnlyBetweenThePositionAndTheLimitOfASlice() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes("xxone\ntwo\nyy"));
+        buffer.position(2);
+        ByteBuffer slice = buffer.slice();
+        slice.limit(8);
+
+        decoder.decode(slice);
+        assertEquals(Arrays.asList("one", "two"), lines);
+        assertEquals(slice.limit(), slice.position());
+    }
+
+    @Test
+    public void finishEmitsAnUnterminatedLastLine() {
+        feed(bytes("one\ntwo"));
+        assertEquals(Arrays.asList("one"), lines);
+
+        decoder.finish();
+        assertEquals(Arrays.asList("one", "two"), lines);
+
+        decoder.finish();
+        assertEquals(Arrays.asList("one", "two"), lines);
+    }
+
+    @Test
+    public void finishEmitsNothingAfterACompleteLine() {
+        feed(bytes("one\n"));
+        decoder.finish();
+        assertEquals(Arrays.asList("one"), lines);
+    }
+}
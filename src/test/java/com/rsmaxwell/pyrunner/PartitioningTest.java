@@ -0,0 +1,100 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PartitioningTest {
+
+    private static double[] values(int from, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = from + i;
+        }
+        return values;
+    }
+
+    @Test
+    public void roundRobinSendsValueIToShardIModN() {
+        double[] values = values(0, 10);
+        assertArrayEquals(new double[] { 0, 3, 6, 9 }, Partitioning.roundRobin.part(values, 0, 0, 3), 0);
+        assertArrayEquals(new double[] { 1, 4, 7 }, Partitioning.roundRobin.part(values, 0, 1, 3), 0);
+        assertArrayEquals(new double[] { 2, 5, 8 }, Partitioning.roundRobin.part(values, 0, 2, 3), 0);
+    }
+
+    @Test
+    public void roundRobinCarriesOnFromWhereTheLastCallStopped() {
+        // values 0..9 are already in the field, so value 10 goes to shard 10 mod 4 = 2
+        double[] values = values(10, 5);
+        assertArrayEquals(new double[] { 12 }, Partitioning.roundRobin.part(values, 10, 0, 4), 0);
+        assertArrayEquals(new double[] { 13 }, Partitioning.roundRobin.part(values, 10, 1, 4), 0);
+        assertArrayEquals(new double[] { 10, 14 }, Partitioning.roundRobin.part(values, 10, 2, 4), 0);
+        assertArrayEquals(new double[] { 11 }, Partitioning.roundRobin.part(values, 10, 3, 4), 0);
+    }
+
+    @Test
+    public void roundRobinOverManyCallsMatchesOneCall() {
+        int shardCount = 3;
+        int[] sizes = { 0, 1, 2, 5, 1, 7, 3 };
+
+        List<List<Double>> shards = new ArrayList<List<Double>>();
+        for (int k = 0; k < shardCount; k++) {
+            shards.add(new ArrayList<Double>());
+        }
+
+        int offset = 0;
+        for (int size : sizes) {
+            double[] values = values(offset, size);
+            for (int k = 0; k < shardCount; k++) {
+                for (double value : Partitioning.roundRobin.part(values, offset, k, shardCount)) {
+                    shards.get(k).add(value);
+                }
+            }
+            offset += size;
+        }
+
+        for (int k = 0; k < shardCount; k++) {
+            List<Double> shard = shards.get(k);
+            for (int j = 0; j < shard.size(); j++) {
+                assertEquals(k + j * shardCount, shard.get(j), 0);
+            }
+            assertEquals((offset - k + shardCount - 1) / shardCount, shard.size());
+        }
+    }
+
+    @Test
+    public void roundRobinGivesAnEmptyPartToAShardWhichGetsNothing() {
+        assertEquals(0, Partitioning.roundRobin.part(values(0, 1), 0, 1, 3).length);
+        assertEquals(0, Partitioning.roundRobin.part(new double[0], 5, 2, 3).length);
+    }
+
+    @Test
+    public void rangeCutsContiguousSlicesOfNearlyEqualLength() {
+        for (int length = 0; length < 30; length++) {
+            for (int shardCount = 1; shardCount <= 7; shardCount++) {
+                double[] values = values(0, length);
+                int next = 0;
+                for (int k = 0; k < shardCount; k++) {
+                    double[] part = Partitioning.range.part(values, 123, k, shardCount);
+                    assertTrue(part.length == length / shardCount || part.length == length / shardCount + 1);
+                    for (double value : part) {
+                        assertEquals(next++, value, 0);
+                    }
+                }
+                assertEquals(length, next);
+            }
+        }
+    }
+
+    @Test
+    public void rangeIgnoresWhatTheFieldAlreadyHolds() {
+        double[] values = values(0, 6);
+        assertArrayEquals(Partitioning.range.part(values, 0, 1, 3), Partitioning.range.part(values, 7, 1, 3), 0);
+        assertArrayEquals(new double[] { 2, 3 }, Partitioning.range.part(values, 7, 1, 3), 0);
+    }
+}
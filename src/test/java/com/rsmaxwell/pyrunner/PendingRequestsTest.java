@@ -0,0 +1,139 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The table of pending requests of a RunnerAsync, which matches each response to its request, and the sweeper which drops the requests
+ * that have been given up on. The table is only reached through a running server, so these tests start one
+ */
+public class PendingRequestsTest {
+
+    private Runner runner;
+    private RunnerAsync client;
+
+    @Before
+    public void setUp() throws Exception {
+        RunnerConfig config = new RunnerConfig();
+        config.setLogLevel(LogLevel.quiet);
+        runner = new Runner(config);
+        client = runner.asyncClient;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            runner.close();
+        } catch (RunnerException e) {
+            // the server was made to exit
+        }
+    }
+
+    private static void awaitPending(RunnerAsync client, int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (client.getPendingCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, client.getPendingCount());
+    }
+
+    @Test
+    public void matchesEachResponseToItsRequestAcrossThreads() throws Exception {
+        final FunctionHandle echo = runner.registerFunction("echo", "def echo(x):\n    return x\n");
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+                    for (int i = 0; i < 50; i++) {
+                        futures.add(client.callFunction(echo, thread * 1000 + i));
+                    }
+                    for (int i = 0; i < 50; i++) {
+                        assertEquals(thread * 1000 + i, ((Number) futures.get(i).get()).intValue());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(0, client.getPendingCount());
+    }
+
+    @Test
+    public void dropsARequestGivenUpOnAndIgnoresItsLateResponse() throws Exception {
+        FunctionHandle slow = runner.registerFunction("slow", "def slow():\n    time.sleep(1.5)\n    return 1\n");
+        client.setAbandonTimeout(100, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Object> future = RunnerAsync.withTimeout(client.callFunction(slow), 50, TimeUnit.MILLISECONDS);
+        try {
+            future.get();
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, client.getPendingCount());
+
+        // the sweeper runs every second
+        awaitPending(client, 0, 3000);
+
+        // the late response finds no request, and the requests after it are still answered
+        Thread.sleep(1000);
+        runner.ping();
+        assertEquals(0, client.getPendingCount());
+    }
+
+    @Test
+    public void keepsARequestWhichIsStillAwaited() throws Exception {
+        FunctionHandle slow = runner.registerFunction("slow", "def slow():\n    time.sleep(1.5)\n    return 1\n");
+        client.setAbandonTimeout(100, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Object> future = client.callFunction(slow);
+        Thread.sleep(1200);
+        assertEquals(1, client.getPendingCount());
+        assertEquals(1, ((Number) future.get()).intValue());
+        assertEquals(0, client.getPendingCount());
+    }
+
+    @Test
+    public void failsThePendingRequestsWhenTheServerDies() throws Exception {
+        FunctionHandle slow = runner.registerFunction("slow", "def slow():\n    time.sleep(5)\n    return 1\n");
+        FunctionHandle exit = runner.registerFunction("exit", "def exit():\n    os._exit(1)\n");
+
+        CompletableFuture<Object> pending = client.query(Priority.background, slow);
+        CompletableFuture<Object> exited = client.query(Priority.fast, exit);
+
+        for (CompletableFuture<Object> future : Arrays.asList(pending, exited)) {
+            try {
+                future.get(2, TimeUnit.SECONDS);
+                fail("expected the request to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RunnerException);
+            }
+        }
+        assertEquals(0, client.getPendingCount());
+    }
+}
@@ -0,0 +1,160 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+    private DataVersions versions;
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+        versions = new DataVersions();
+        loads = new AtomicInteger();
+    }
+
+    private ResultCache.Loader<Object> loader(Object value) {
+        return () -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(value);
+        };
+    }
+
+    @Test
+    public void answersARepeatedReadFromTheCache() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+        Object value = new Object();
+
+        assertSame(value, cache.get("get a", "a", loader(value)));
+        assertSame(value, cache.get("get a", "a", loader(new Object())));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void readsAFieldAgainOnceItHasChanged() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+        cache.get("get a", "a", loader("old"));
+        cache.get("get b", "b", loader("b"));
+
+        DataVersionsTest.mutate(versions, DataVersionsTest.response(1, 0, "a", 1));
+
+        assertEquals("new", cache.get("get a", "a", loader("new")));
+        assertEquals("b", cache.get("get b", "b", loader("other")));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void readsAQueryAgainAfterAnyMutation() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+        cache.get("query", null, loader("old"));
+
+        DataVersionsTest.mutate(versions, DataVersionsTest.response(1, 0, "b", 1));
+
+        assertEquals("new", cache.get("query", null, loader("new")));
+    }
+
+    @Test
+    public void keepsNothingReadWhileAMutationIsInFlight() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+        versions.begin();
+
+        cache.get("get a", "a", loader("one"));
+        assertEquals("two", cache.get("get a", "a", loader("two")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void keepsNothingReadWhileTheFieldChanged() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+
+        cache.get("get a", "a", () -> {
+            DataVersionsTest.mutate(versions, DataVersionsTest.response(1, 0, "a", 1));
+            return CompletableFuture.completedFuture("stale");
+        });
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedRead() throws Exception {
+        ResultCache cache = new ResultCache(versions, 2, 0, TimeUnit.SECONDS);
+        cache.get("a", "a", loader("a"));
+        cache.get("b", "b", loader("b"));
+        cache.get("a", "a", loader("a"));
+        cache.get("c", "c", loader("c"));
+
+        assertEquals(2, cache.size());
+        assertEquals(3, loads.get());
+        cache.get("a", "a", loader("a"));
+        assertEquals(3, loads.get());
+        cache.get("b", "b", loader("b"));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void expiresAReadAfterItsTimeToLive() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 50, TimeUnit.MILLISECONDS);
+        cache.get("a", "a", loader("old"));
+        Thread.sleep(100);
+
+        assertEquals("new", cache.get("a", "a", loader("new")));
+    }
+
+    @Test
+    public void sharesOneLoadBetweenIdenticalReads() throws Exception {
+        final ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+        final CompletableFuture<Object> response = new CompletableFuture<Object>();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> first = executor.submit(() -> cache.get("a", "a", () -> {
+                loads.incrementAndGet();
+                started.countDown();
+                return response;
+            }));
+            started.await();
+            Future<Object> second = executor.submit(() -> cache.get("a", "a", loader("other")));
+
+            Thread.sleep(50);
+            response.complete("shared");
+
+            assertEquals("shared", first.get());
+            assertEquals("shared", second.get());
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void keepsNothingFromAFailedRead() throws Exception {
+        ResultCache cache = new ResultCache(versions, 10, 0, TimeUnit.SECONDS);
+        CompletableFuture<Object> failed = new CompletableFuture<Object>();
+        failed.completeExceptionally(new RunnerException("no such field"));
+
+        try {
+            cache.get("a", "a", () -> failed);
+            fail("expected the read to fail");
+        } catch (RunnerException e) {
+            assertEquals("no such field", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        assertEquals("a", cache.get("a", "a", loader("a")));
+    }
+}
@@ -0,0 +1,145 @@
+package com.rsmaxwell.pyrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamReactorTest {
+
+    /**
+     * A process which is only ever alive or dead
+     */
+    private static class FakeProcess implements ServerProcess {
+
+        volatile boolean alive = true;
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return null;
+        }
+
+        @Override
+        public Long getProcessId() {
+            return null;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return alive;
+        }
+
+        @Override
+        public void destroy() {
+            alive = false;
+        }
+    }
+
+    private StreamReactor reactor;
+
+    @Before
+    public void setUp() {
+        reactor = new StreamReactor(2);
+    }
+
+    @After
+    public void tearDown() {
+        reactor.close();
+    }
+
+    private static List<String> awaitLines(StreamReader reader, int count) throws InterruptedException {
+        List<String> lines = new ArrayList<String>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (lines.size() < count && System.nanoTime() < deadline) {
+            lines.addAll(reader.read());
+            Thread.sleep(1);
+        }
+        return lines;
+    }
+
+    @Test
+    public void linesAreReadInOrderAcrossWrites() throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 1024);
+        StreamReader reader = new StreamReader(in, StreamReader.Operation.stdout, Collections.<RunnerObserver> emptyList());
+        reactor.register(in, reader, new FakeProcess(), null);
+
+        out.write("one\ntw".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        Thread.sleep(20);
+        out.write("o\nthree\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        assertEquals(Arrays.asList("one", "two", "three"), awaitLines(reader, 3));
+    }
+
+    @Test
+    public void manyStreamsAreReadBySharedThreads() throws Exception {
+        int count = 6;
+        List<PipedOutputStream> outs = new ArrayList<PipedOutputStream>();
+        List<StreamReader> readers = new ArrayList<StreamReader>();
+        for (int i = 0; i < count; i++) {
+            PipedOutputStream out = new PipedOutputStream();
+            PipedInputStream in = new PipedInputStream(out, 1024);
+            StreamReader reader = new StreamReader(in, StreamReader.Operation.stdout, Collections.<RunnerObserver> emptyList());
+            reactor.register(in, reader, new FakeProcess(), null);
+            outs.add(out);
+            readers.add(reader);
+        }
+
+        for (int i = 0; i < count; i++) {
+            outs.get(i).write(("stream " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            outs.get(i).flush();
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(Collections.singletonList("stream " + i), awaitLines(readers.get(i), 1));
+        }
+    }
+
+    @Test
+    public void aStreamEndsOnceItsProcessHasDiedAndNothingIsLeft() throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 1024);
+        StreamReader reader = new StreamReader(in, StreamReader.Operation.stdout, Collections.<RunnerObserver> emptyList());
+        CountDownLatch ended = new CountDownLatch(1);
+        reader.onEnd(ended::countDown);
+
+        FakeProcess process = new FakeProcess();
+        reactor.register(in, reader, process, null);
+
+        out.write("last\nunterminated".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals(Collections.singletonList("last"), awaitLines(reader, 1));
+
+        Thread.sleep(20);
+        assertEquals("a live process keeps its stream open", 1, ended.getCount());
+
+        process.destroy();
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+        assertEquals("the partial line is delivered at the end", Collections.singletonList("unterminated"), reader.read());
+    }
+}